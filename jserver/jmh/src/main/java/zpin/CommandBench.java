@@ -0,0 +1,82 @@
+package zpin;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A text command from parsing through to its reply being written, including the command log.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class CommandBench {
+	JServer c;
+	String leds = "#12 leds 40";
+
+	@Setup
+	public void setup() throws Exception {
+		Harness.quiet();
+		c = Harness.connection();
+		Sounds.initTracks();
+		Sounds.Sound sound = new Sounds.Sound("bench");
+		sound.files.add(new Sounds.Wav("bench", new short[44100]));
+		Sounds.get().sounds.put("bench", sound);
+		c.handleCommand("init 0 s16");
+		c.handleCommand("0: inits momentary 3");
+		c.async.join();
+		for (int i=0; i<30; i++)
+			leds += " #ff8000 "+LedManager.LedState.pack(LedManager.LedMode.Flashing, 2, i/15., .5);
+		for (int i=0; i<SwitchMatrix.get().switches.length; i+=3)
+			SwitchMatrix.get().switches[i].state = true;
+	}
+
+	@Benchmark
+	public boolean light() {
+		return c.handleCommand("#12 light 2 40 #ff8000 flashing 2 0 0.5 #000000 solid 1 0 0.5");
+	}
+
+	// 30 leds in one message, vs light's one
+	@Benchmark
+	public boolean leds() {
+		return c.handleCommand(leds);
+	}
+
+	// and the mixer's side of starting it, or the queue fills and it's only measuring the error
+	@Benchmark
+	public boolean sound() {
+		boolean open = c.handleCommand("#12 sound 100 1 false 0 false bench");
+		Sounds.get().drain();
+		return open;
+	}
+
+	// until the board's done and the reply's sent
+	@Benchmark
+	public int fire() {
+		c.handleCommand("#12 0: fire 3");
+		return c.async.join();
+	}
+
+	// nothing to report, what the game polls with
+	@Benchmark
+	public boolean sw() {
+		return c.handleCommand("#12 sw");
+	}
+
+	@Benchmark
+	public boolean swState() {
+		return c.handleCommand("#12 sw-state");
+	}
+}
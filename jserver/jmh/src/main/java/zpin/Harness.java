@@ -0,0 +1,51 @@
+package zpin;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Setup shared by the benchmarks.  They need PI4J_PLATFORM=Simulated, so the switch matrix and
+ * SatIO come up without a Pi (SatIO on SimBus's boards).
+ */
+class Harness {
+	static void check() {
+		if (!SatIO.simulated)
+			throw new RuntimeException("run with PI4J_PLATFORM=Simulated");
+	}
+
+	// everything logs to stdout, which would be most of what's measured
+	static void quiet() {
+		System.setOut(new PrintStream(new OutputStream() {
+			public void write(int b) {}
+			public void write(byte[] b, int off, int len) {}
+		}));
+	}
+
+	// a connection to the server whose replies are read and thrown away
+	static JServer connection() throws IOException {
+		check();
+		ServerSocketChannel server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress("127.0.0.1", 0));
+		SocketChannel client = SocketChannel.open(server.getLocalAddress());
+		SocketChannel channel = server.accept(); // blocking, so replies are written straight out
+		server.close();
+		Thread drain = new Thread("drain") {
+			public void run() {
+				ByteBuffer buf = ByteBuffer.allocateDirect(1<<16);
+				try {
+					while (client.read(buf) >= 0)
+						buf.clear();
+				} catch (IOException e) {
+				}
+			}
+		};
+		drain.setDaemon(true);
+		drain.start();
+		return new JServer(null, channel, false);
+	}
+}
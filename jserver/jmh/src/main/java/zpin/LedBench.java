@@ -0,0 +1,58 @@
+package zpin;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import zpin.LedManager.LedMode;
+import zpin.LedManager.LedState;
+
+/**
+ * Computing one frame of the strip (LedManager.run) with every led in the same mode.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class LedBench {
+	@Param
+	LedMode mode;
+
+	LedManager led;
+	int[] rgb;
+	double now = 0;
+
+	@Setup
+	public void setup() {
+		led = LedManager.get();
+		rgb = new int[led.pixels.length];
+		LedManager.Stage stage = new LedManager.Stage();
+		for (int i=0; i<rgb.length; i++) {
+			LedState s = new LedState(i, 255-i, 128);
+			s.mode = mode;
+			s.freq = 2;
+			s.phase = i/150.;
+			led.set(stage, i, new LedState[] { s });
+		}
+		led.commit(stage);
+	}
+
+	@Benchmark
+	public int[] frame() {
+		now += 33; // so the flashing and pulsing change
+		led.frame(now, rgb);
+		return rgb;
+	}
+}
@@ -0,0 +1,56 @@
+package zpin;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding board commands with SatIO.CommandBuilder.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class SatIOBench {
+	SatIO io = new SatIO(new SimBus());
+	byte num = 3;
+
+	// as Solenoid16.fireSolenoidFor
+	@Benchmark
+	public byte[] fireFor() {
+		return io.buildCommand()
+		.bytes(
+			(byte)(0b0001 << 4 | num)
+		).ints(
+			100
+		).stream.toByteArray();
+	}
+
+	// as Solenoid16.initTriggered, the longest
+	@Benchmark
+	public byte[] initTriggered() {
+		return io.buildCommand()
+		.bytes(
+			(byte)(0b0110 << 4 | num),
+			Solenoid16.SolenoidMode.Triggered.getValue()
+		).ints(
+			0
+		).bytes(
+			0,
+			2
+		).ints(
+			10,
+			50
+		).stream.toByteArray();
+	}
+}
@@ -0,0 +1,58 @@
+package zpin;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One pass of the mixer (Sounds.run) over the samples it fills at a time, with some channels playing.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class SoundsBench {
+	static final int SAMPLES = 1103; // just over half the line's 50ms buffer
+
+	@Param({ "1", "4", "8", "11" })
+	int playing; // 11 is every channel the tracks have
+
+	Sounds sounds;
+	ByteBuffer buf = ByteBuffer.allocate(SAMPLES*2);
+
+	@Setup
+	public void setup() {
+		Harness.quiet();
+		sounds = Sounds.get();
+		Sounds.initTracks();
+		short[] data = new short[44100*5];
+		Random r = new Random(1);
+		for (int i=0; i<data.length; i++)
+			data[i] = (short)r.nextInt();
+		for (int i=0; i<playing; i++) {
+			Sounds.Play play = new Sounds.Play(new Sounds.Wav("bench"+i, data), Sounds.channels[i], 0.5f);
+			play.loops = Integer.MAX_VALUE;
+		}
+	}
+
+	@Benchmark
+	public ByteBuffer mix() {
+		buf.clear();
+		sounds.mix(buf, SAMPLES);
+		return buf;
+	}
+}
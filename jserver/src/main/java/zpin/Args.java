@@ -0,0 +1,100 @@
+package zpin;
+
+import java.util.Arrays;
+
+/**
+ * Arguments of one command, however it arrived.  Index 0 is the command name.
+ * Typed accessors throw NumberFormatException if the argument can't be read as that type.
+ */
+public interface Args {
+	String name();
+	int count();
+	String str(int index);
+	int num(int index);
+	double dbl(int index);
+	boolean bool(int index);
+	int rgb(int index); // 0xRRGGBB
+	String rest(int index); // all arguments from index on, space separated
+
+	// space separated tokens of one line, reused from line to line
+	public static class Text implements Args {
+		String line = "";
+		int count = 0;
+		int[] start = new int[Frames.MAX_ARGS];
+		int[] end = new int[Frames.MAX_ARGS];
+
+		public Text set(String line) {
+			this.line = line;
+			count = 0;
+			int i = 0, len = line.length();
+			while (i < len) {
+				while (i < len && line.charAt(i) == ' ') i++;
+				if (i == len) break;
+				if (count == start.length) {
+					start = Arrays.copyOf(start, count*2);
+					end = Arrays.copyOf(end, count*2);
+				}
+				start[count] = i;
+				while (i < len && line.charAt(i) != ' ') i++;
+				end[count++] = i;
+			}
+			return this;
+		}
+
+		public String name() {
+			return count > 0? str(0) : "";
+		}
+		public int count() {
+			return count;
+		}
+		public String str(int index) {
+			return line.substring(start[index], end[index]);
+		}
+		public int num(int index) {
+			int i = start[index], e = end[index];
+			boolean neg = false;
+			if (i < e && (line.charAt(i) == '-' || line.charAt(i) == '+'))
+				neg = line.charAt(i++) == '-';
+			if (i == e || e - i > 10)
+				throw new NumberFormatException(str(index));
+			long n = 0;
+			for (; i<e; i++) {
+				int d = line.charAt(i) - '0';
+				if (d < 0 || d > 9)
+					throw new NumberFormatException(str(index));
+				n = n*10 + d;
+			}
+			if (neg) n = -n;
+			if (n != (int)n)
+				throw new NumberFormatException(str(index));
+			return (int)n;
+		}
+		public double dbl(int index) {
+			return Double.parseDouble(str(index));
+		}
+		public boolean bool(int index) {
+			return line.startsWith("true", start[index]) && end[index]-start[index] == 4;
+		}
+		public int rgb(int index) {
+			int i = start[index];
+			if (line.charAt(i) == '#') i++;
+			if (end[index] - i < 6)
+				throw new NumberFormatException(str(index));
+			int rgb = 0;
+			for (int j=i; j<i+6; j++) {
+				int d = Character.digit(line.charAt(j), 16);
+				if (d < 0)
+					throw new NumberFormatException(str(index));
+				rgb = (rgb << 4) | d;
+			}
+			return rgb;
+		}
+		public String rest(int index) {
+			return line.substring(start[index]);
+		}
+
+		public String toString() {
+			return line;
+		}
+	}
+}
@@ -2,6 +2,7 @@ package zpin;
 
 import java.util.Arrays;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 
 import zpin.SatIO.Error;
 
@@ -37,16 +38,11 @@ public class Board {
 		});
 	}
 	
-	public int heartbeat() throws Error {
-		io.select(boardNum);
-		try {
-			byte[] data = io.sendCommandExpect(2, 0b11111111);
+	public CompletableFuture<Integer> heartbeat() {
+		return io.submit(boardNum, SatIO.HEARTBEAT, 2, (byte)0b11111111).thenApply(data -> {
 			int hb = (data[0] << 8) | (data[1]);
 			return hb;
-		}
-		finally {
-			io.select(-1);
-		}
+		});
 	}
 	
 	SatIO io = SatIO.get();
@@ -0,0 +1,286 @@
+package zpin;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Binary log of every command handled, shared by all connections and appended across restarts.
+ *
+ * Connection threads drop fixed size records into a bounded lock-free ring and never wait: if the
+ * ring is full the record is counted and discarded.  A background thread drains it to cmds.log,
+ * rotating to cmds.log.1..n by size (zpin.cmdlog to log somewhere else).  Run this class to print
+ * log files as text.
+ *
+ * file:   "ZCL" 1, records...
+ * record: i64 time (epoch ms), u16 connection, i16 seq, u8 opcode, i8 board, u16 status,
+ *         i32 latency (us), u8 args format (TEXT/FRAME), u8 args length, args
+ */
+public class CmdLog extends Thread {
+	static final byte[] MAGIC = { 'Z', 'C', 'L', 1 };
+	static final byte TEXT = 0; // args are the command line, ascii
+	static final byte FRAME = 1; // args are the frame's typed arguments, see Frames
+	static final int ARGS_MAX = 80;
+
+	static final int CAPACITY = 4096; // power of two
+	static final int MASK = CAPACITY-1;
+
+	final File file;
+	final long maxBytes;
+	final int maxFiles;
+
+	// ring: slot i is free for the producer claiming pos when sequence[i] == pos, and
+	// readable when sequence[i] == pos+1
+	private final AtomicLong tail = new AtomicLong();
+	private final AtomicLongArray sequence = new AtomicLongArray(CAPACITY);
+	private long head = 0; // writer thread only
+	private final long[] time = new long[CAPACITY];
+	private final int[] conn = new int[CAPACITY];
+	private final int[] seq = new int[CAPACITY];
+	private final int[] opcode = new int[CAPACITY];
+	private final int[] board = new int[CAPACITY];
+	private final int[] status = new int[CAPACITY];
+	private final int[] latency = new int[CAPACITY];
+	private final byte[] format = new byte[CAPACITY];
+	private final int[] argsLen = new int[CAPACITY];
+	private final byte[] args = new byte[CAPACITY*ARGS_MAX];
+
+	final AtomicLong dropped = new AtomicLong();
+
+	private DataOutputStream out;
+	private long written;
+
+	private static CmdLog instance = null;
+	public static synchronized CmdLog get() {
+		if (instance == null) {
+			instance = new CmdLog(new File(System.getProperty("zpin.cmdlog", "cmds.log")),
+					Long.getLong("zpin.cmdlog.size", 4<<20), Integer.getInteger("zpin.cmdlog.files", 5));
+			instance.start();
+		}
+		return instance;
+	}
+
+	CmdLog(File file, long maxBytes, int maxFiles) {
+		super("cmdlog");
+		setDaemon(true);
+		setPriority(MIN_PRIORITY);
+		this.file = file;
+		this.maxBytes = maxBytes;
+		this.maxFiles = maxFiles;
+		for (int i=0; i<CAPACITY; i++)
+			sequence.set(i, i);
+	}
+
+	private long claim() {
+		while (true) {
+			long pos = tail.get();
+			long s = sequence.get((int)(pos & MASK));
+			if (s == pos) {
+				if (tail.compareAndSet(pos, pos+1))
+					return pos;
+			}
+			else if (s < pos) {
+				dropped.incrementAndGet();
+				return -1;
+			}
+		}
+	}
+
+	private int fill(long pos, int conn, int seq, int opcode, int board, int status, long latencyNanos) {
+		int i = (int)(pos & MASK);
+		this.time[i] = System.currentTimeMillis();
+		this.conn[i] = conn;
+		this.seq[i] = seq;
+		this.opcode[i] = opcode;
+		this.board[i] = board;
+		this.status[i] = status;
+		this.latency[i] = (int)Math.min(latencyNanos/1000, Integer.MAX_VALUE);
+		return i;
+	}
+
+	public void log(int conn, int seq, int opcode, int board, String text, int status, long latencyNanos) {
+		long pos = claim();
+		if (pos < 0) return;
+		int i = fill(pos, conn, seq, opcode, board, status, latencyNanos);
+		int len = Math.min(text.length(), ARGS_MAX);
+		for (int j=0; j<len; j++) {
+			char c = text.charAt(j);
+			args[i*ARGS_MAX+j] = (byte)(c < 0x80? c : '?');
+		}
+		format[i] = TEXT;
+		argsLen[i] = len;
+		sequence.lazySet(i, pos+1);
+	}
+
+	public void log(int conn, int seq, int opcode, int board, byte[] frameArgs, int off, int len, int status, long latencyNanos) {
+		long pos = claim();
+		if (pos < 0) return;
+		int i = fill(pos, conn, seq, opcode, board, status, latencyNanos);
+		len = Math.min(len, ARGS_MAX);
+		System.arraycopy(frameArgs, off, args, i*ARGS_MAX, len);
+		format[i] = FRAME;
+		argsLen[i] = len;
+		sequence.lazySet(i, pos+1);
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			try {
+				int n = 0;
+				while (true) {
+					int i = (int)(head & MASK);
+					if (sequence.get(i) != head+1) break;
+					write(i);
+					sequence.lazySet(i, head+CAPACITY);
+					head++;
+					n++;
+				}
+				if (n == 0) {
+					if (out != null) out.flush();
+					LockSupport.parkNanos(5000000);
+				}
+			} catch (IOException e) {
+				System.out.println("error writing command log");
+				e.printStackTrace();
+				out = null;
+				LockSupport.parkNanos(1000000000L);
+			}
+		}
+	}
+
+	private void write(int i) throws IOException {
+		if (out == null || written >= maxBytes) {
+			if (out != null) {
+				out.close();
+				rotate();
+			}
+			if (file.length() > 0 && !isLog(file)) {
+				// the text log from before it was binary, kept but out of the way of the rotations
+				File old = new File(file.getPath()+".txt");
+				old.delete();
+				file.renameTo(old);
+				System.out.println("moved old "+file+" to "+old);
+			}
+			written = file.length();
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true), 1<<16));
+			if (written == 0) {
+				out.write(MAGIC);
+				written = MAGIC.length;
+			}
+		}
+		out.writeLong(time[i]);
+		out.writeShort(conn[i]);
+		out.writeShort(seq[i]);
+		out.writeByte(opcode[i]);
+		out.writeByte(board[i]);
+		out.writeShort(status[i]);
+		out.writeInt(latency[i]);
+		out.writeByte(format[i]);
+		out.writeByte(argsLen[i]);
+		out.write(args, i*ARGS_MAX, argsLen[i]);
+		written += 8+2+2+1+1+2+4+1+1+argsLen[i];
+	}
+
+	private void rotate() {
+		new File(file.getPath()+"."+maxFiles).delete();
+		for (int n=maxFiles-1; n>=1; n--)
+			new File(file.getPath()+"."+n).renameTo(new File(file.getPath()+"."+(n+1)));
+		file.renameTo(new File(file.getPath()+".1"));
+	}
+
+	static boolean isLog(File file) throws IOException {
+		try (FileInputStream in = new FileInputStream(file)) {
+			byte[] magic = new byte[MAGIC.length];
+			return in.read(magic) == MAGIC.length && Arrays.equals(magic, MAGIC);
+		}
+	}
+
+	static void dump(File file, PrintStream out) throws IOException {
+		SimpleDateFormat date = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			byte[] magic = new byte[MAGIC.length];
+			in.readFully(magic);
+			for (int i=0; i<MAGIC.length; i++)
+				if (magic[i] != MAGIC[i])
+					throw new IOException(file+" is not a command log");
+			Frames.FrameArgs frame = new Frames.FrameArgs();
+			byte[] args = new byte[4+ARGS_MAX];
+			while (true) {
+				long time;
+				try {
+					time = in.readLong();
+				} catch (EOFException e) {
+					break;
+				}
+				int conn, seq, opcode, board, status, latency, format, len;
+				try {
+					conn = in.readUnsignedShort();
+					seq = in.readShort();
+					opcode = in.readUnsignedByte();
+					board = in.readByte();
+					status = in.readUnsignedShort();
+					latency = in.readInt();
+					format = in.readByte();
+					len = in.readUnsignedByte();
+					in.readFully(args, 4, len);
+				} catch (EOFException e) {
+					out.println("(truncated record)");
+					break;
+				}
+
+				String cmd;
+				if (format == TEXT)
+					cmd = new String(args, 4, len, StandardCharsets.US_ASCII);
+				else {
+					ByteBuffer buf = ByteBuffer.wrap(args, 0, 4+len);
+					buf.putShort(0, (short)seq);
+					buf.put(2, (byte)opcode);
+					buf.put(3, (byte)board);
+					try {
+						frame.decode(buf);
+						cmd = frame.toString();
+					} catch (RuntimeException e) {
+						cmd = frame.name()+" ..."; // args were cut off at ARGS_MAX
+					}
+				}
+				out.println(date.format(new Date(time))+" c"+conn+(seq!=0? " #"+seq : "")
+						+" "+(board>=0? board+": " : "")+cmd+" -> "+status+" "+latency+"us");
+			}
+		}
+	}
+
+	// prints the given logs, or the log and its rotations oldest first
+	public static void main(String[] args) throws IOException {
+		List<File> files = new ArrayList<>();
+		if (args.length > 0)
+			for (String a : args)
+				files.add(new File(a));
+		else {
+			String log = System.getProperty("zpin.cmdlog", "cmds.log");
+			for (int n=100; n>=1; n--)
+				if (new File(log+"."+n).exists())
+					files.add(new File(log+"."+n));
+			files.add(new File(log));
+		}
+		for (File f : files)
+			dump(f, System.out);
+	}
+}
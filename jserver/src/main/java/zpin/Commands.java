@@ -0,0 +1,738 @@
+package zpin;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+
+import zpin.LedManager.LedMode;
+import zpin.LedManager.LedState;
+import zpin.SwitchMatrix.Switch;
+
+/**
+ * Every command the server understands, looked up by name, alias or binary opcode.
+ * Each command declares its argument types up front; they're checked and converted once
+ * into the connection's Slots before the handler runs.
+ */
+public class Commands {
+	enum Arg {
+		INT, BYTE, BOOL, DOUBLE, RGB, STR,
+		REST, // the rest of the line as one string, always last
+	}
+
+	public static abstract class Command {
+		final int opcode; // 0 = text only
+		final String name;
+		final String[] aliases;
+		Arg[] args = new Arg[0];
+		int required = 0;
+		Arg[] repeat = null; // group repeated after args until the arguments run out
+		String usage = null;
+		HashMap<String, Command> subs = null; // picked by argument 1
+		final LongAdder count = new LongAdder(); // times requested, whether or not it succeeded
+
+		Command(int opcode, String name, String... aliases) {
+			this.opcode = opcode;
+			this.name = name;
+			this.aliases = aliases;
+		}
+
+		Command args(int required, Arg... args) {
+			this.required = required;
+			this.args = args;
+			return this;
+		}
+		Command repeat(Arg... group) {
+			this.repeat = group;
+			return this;
+		}
+		Command usage(String usage) {
+			this.usage = usage;
+			return this;
+		}
+		Command sub(Command sub) {
+			if (subs == null) subs = new HashMap<>();
+			subs.put(sub.name, sub);
+			for (String alias : sub.aliases)
+				subs.put(alias, sub);
+			return this;
+		}
+
+		// false closes the connection
+		abstract boolean run(JServer c, Slots a) throws Exception;
+	}
+
+	// runs against the connection's current board, which must be a Solenoid16
+	// board IO is queued for the SPI worker, the reply is sent once it's done (see JServer.respWhenDone)
+	static abstract class BoardCommand extends Command {
+		BoardCommand(int opcode, String name, String... aliases) {
+			super(opcode, name, aliases);
+		}
+
+		static int priority(JServer c) {
+			return c.triggering? SatIO.TRIGGER : SatIO.COMMAND;
+		}
+
+		abstract void run(JServer c, Solenoid16 board, Slots a) throws Exception;
+
+		boolean run(JServer c, Slots a) throws Exception {
+			Board board = c.curBoard != -1? JServer.boards[c.curBoard] : null;
+			if (board == null || !board.type.equals(Board.Type.Solenoid16))
+				c.error("unknown command '"+name+"'");
+			run(c, (Solenoid16)board, a);
+			return true;
+		}
+	}
+
+	/**
+	 * Parsed arguments, one per connection and reused for every command.
+	 * Slot k holds argument k as sent, so slot 0 is the command name.
+	 */
+	public static class Slots {
+		int[] ints = new int[Frames.MAX_ARGS];
+		double[] dbls = new double[Frames.MAX_ARGS];
+		String[] strs = new String[Frames.MAX_ARGS];
+		int count;
+		Args args; // as parsed
+
+		boolean has(int k) { return k < count; }
+		int num(int k) { return ints[k]; }
+		byte byt(int k) { return (byte)ints[k]; }
+		boolean bool(int k) { return ints[k] != 0; }
+		int rgb(int k) { return ints[k]; }
+		double dbl(int k) { return dbls[k]; }
+		String str(int k) { return strs[k]; }
+
+		// checks args against cmd's spec and fills the slots, returns the command (or sub command) to run
+		Command parse(JServer c, Command cmd, Args args) throws ZError {
+			this.args = args;
+			count = args.count();
+			int k = 1;
+			if (cmd.subs != null) {
+				if (count < 2)
+					c.error(cmd.usage != null? cmd.usage : "Expected at least 1 arguments");
+				Command sub = cmd.subs.get(args.str(1));
+				if (sub == null)
+					c.error("unknown type '"+args.str(1)+"'");
+				sub.count.increment();
+				cmd = sub;
+				k = 2;
+			}
+			if (count-k < cmd.required)
+				c.error(cmd.usage != null? cmd.usage : "Expected at least "+cmd.required+" arguments");
+			if (count > ints.length) { // only text, frames can't have more than MAX_ARGS
+				ints = Arrays.copyOf(ints, count);
+				dbls = Arrays.copyOf(dbls, count);
+				strs = Arrays.copyOf(strs, count);
+			}
+			for (int t=0; t<cmd.args.length; t++, k++) {
+				if (cmd.args[t] == Arg.REST) {
+					strs[k] = k < count? args.rest(k) : "";
+					count = k+1;
+					return cmd;
+				}
+				if (k >= count) break;
+				read(c, cmd.args[t], args, k);
+			}
+			if (cmd.repeat != null)
+				for (int t=0; k<count; t = (t+1)%cmd.repeat.length, k++)
+					read(c, cmd.repeat[t], args, k);
+			return cmd;
+		}
+
+		private void read(JServer c, Arg type, Args args, int k) throws ZError {
+			try {
+				switch (type) {
+				case INT:
+					ints[k] = args.num(k);
+					break;
+				case BYTE:
+					ints[k] = args.num(k);
+					if ((ints[k] & 0xFFFFFF00) != 0)
+						c.error("Expected argument "+k+" to be a byte");
+					break;
+				case BOOL:
+					ints[k] = args.bool(k)? 1 : 0;
+					break;
+				case DOUBLE:
+					dbls[k] = args.dbl(k);
+					break;
+				case RGB:
+					ints[k] = args.rgb(k);
+					break;
+				default:
+					strs[k] = args.str(k);
+					break;
+				}
+			} catch (NumberFormatException|StringIndexOutOfBoundsException e) {
+				c.error("Expected number for argument "+k);
+			}
+		}
+	}
+
+	static final Command[] byOpcode = new Command[256];
+	static final HashMap<String, Command> byName = new HashMap<>();
+	static final List<Command> all = new ArrayList<>();
+
+	static Command get(String name) {
+		return byName.get(name);
+	}
+	static Command get(int opcode) {
+		return opcode > 0 && opcode < byOpcode.length? byOpcode[opcode] : null;
+	}
+
+	static void add(Command cmd) {
+		if (cmd.opcode != 0) {
+			if (byOpcode[cmd.opcode] != null)
+				throw new RuntimeException("opcode "+cmd.opcode+" used twice");
+			byOpcode[cmd.opcode] = cmd;
+		}
+		byName.put(cmd.name, cmd);
+		for (String alias : cmd.aliases)
+			byName.put(alias, cmd);
+		all.add(cmd);
+	}
+
+	static void checkLed(JServer c, int led) throws ZError {
+		if (led < 0 || led >= JServer.led.pixels.length)
+			c.error("no led "+led);
+	}
+
+	// publishes lights set by a command, unless the connection's holding them or they're part of a batch
+	static void lit(JServer c) {
+		if (!c.holdLeds && !c.batching)
+			JServer.led.commit(c.leds);
+	}
+
+	// a play of name, with any options after it: @start time, !priority, ~fade in ms
+	static Sounds.Play sound(JServer c, String name, float volume, int loops) throws Exception {
+		double at = -1;
+		int priority = 0, fadeIn = 0;
+		for (int k; (k = name.lastIndexOf(' ')) >= 0 && k+1 < name.length()
+				&& "@!~".indexOf(name.charAt(k+1)) >= 0; name = name.substring(0, k)) {
+			String opt = name.substring(k+2);
+			try {
+				switch (name.charAt(k+1)) {
+				case '@': at = Double.parseDouble(opt); break;
+				case '!': priority = Integer.parseInt(opt); break;
+				case '~': fadeIn = Integer.parseInt(opt); break;
+				}
+			} catch (NumberFormatException e) {
+				c.error("bad option '"+name.substring(k+1)+"'");
+			}
+		}
+		Sounds.Play play = JServer.sound.prepare(name, volume, loops);
+		play.at = at;
+		play.priority = priority;
+		play.fadeIn(fadeIn);
+		return play;
+	}
+
+	// name=count for everything that's been run, including sub commands
+	static String stats() {
+		StringBuilder s = new StringBuilder();
+		for (Command cmd : all) {
+			stats(s, cmd.name, cmd);
+			if (cmd.subs != null)
+				for (Command sub : new LinkedHashSet<>(cmd.subs.values()))
+					stats(s, cmd.name+"."+sub.name, sub);
+		}
+		long dropped = CmdLog.get().dropped.get();
+		if (dropped > 0)
+			s.append("cmdlog.dropped=").append(dropped);
+		return s.toString().trim();
+	}
+	private static void stats(StringBuilder s, String name, Command cmd) {
+		long n = cmd.count.sum();
+		if (n > 0)
+			s.append(name).append('=').append(n).append(' ');
+	}
+
+	// opcodes are part of the binary protocol, never reuse or renumber them
+	static {
+		add(new Command(1, "sw", "switch-event") {
+			boolean run(JServer c, Slots a) {
+				SwitchMatrix matrix = JServer.matrix;
+				if (matrix.events.isEmpty()) {
+					c.skipLog = true; // polled constantly
+					c.resp("empty");
+				}
+				else {
+					StringBuilder events = new StringBuilder();
+					while (!matrix.events.isEmpty()) {
+						events.append(matrix.events.remove().toString());
+						if (!matrix.events.isEmpty()) events.append(';');
+					}
+					c.resp(events, 200);
+				}
+				return true;
+			}
+		});
+		add(new Command(0, "binary") {
+			boolean run(JServer c, Slots a) {
+				c.ack();
+				c.binary = true;
+				return true;
+			}
+		});
+		add(new Command(22, "subscribe") {
+			boolean run(JServer c, Slots a) {
+				c.ack();
+				JServer.matrix.subscribe(c);
+				return true;
+			}
+		});
+		add(new Command(23, "unsubscribe") {
+			boolean run(JServer c, Slots a) {
+				JServer.matrix.unsubscribe(c);
+				c.ack();
+				return true;
+			}
+		});
+		add(new Command(2, "sw-state") {
+			boolean run(JServer c, Slots a) {
+				SwitchMatrix matrix = JServer.matrix;
+				StringBuilder response = new StringBuilder();
+				int num = 0;
+				for (int i=0; i<matrix.switches.length; i++) {
+					num = (num<<1)|(matrix.switches[i].state? 1:0);
+					if ((i+1)%32 == 0) {
+						response.append(num).append(' ');
+						num = 0;
+					}
+				}
+				c.resp(response);
+				return true;
+			}
+		});
+		add(new Command(3, "sw-config") {
+			boolean run(JServer c, Slots a) {
+				SwitchMatrix matrix = JServer.matrix;
+				Switch sw = matrix.switches[a.num(1)*matrix.Width+a.num(2)];
+				sw.minOnTime = a.num(3);
+				sw.minOffTime = a.num(4);
+				sw.inverted = a.bool(5);
+				System.out.println("Configure switch "+a.num(1)+","+a.num(2));
+				c.ack();
+				return true;
+			}
+		}.args(5, Arg.INT, Arg.INT, Arg.INT, Arg.INT, Arg.BOOL)
+		.usage("usage: sw-config row col minOnTime minOffTime inverted"));
+		add(new Command(4, "sound") {
+			boolean run(JServer c, Slots a) throws Exception {
+				int track = a.num(2);
+				if (a.bool(3))
+					JServer.sound.stopTrack(track);
+				Sounds.Play play = sound(c, a.str(6), ((float)a.num(1))/100, a.num(4));
+				JServer.sound.queue(play, track, a.bool(5));
+				c.resp(play.num);
+				return true;
+			}
+		}.args(5, Arg.INT, Arg.INT, Arg.BOOL, Arg.INT, Arg.BOOL, Arg.REST)
+		.usage("usage: sound volume track solo loops resume name [@start time] [!priority] [~fade in ms]"));
+		add(new Command(30, "fade") {
+			boolean run(JServer c, Slots a) throws Exception {
+				int track = a.num(2);
+				JServer.sound.fadeOut(track, a.num(1));
+				if (a.has(5) && !a.str(5).isEmpty()) {
+					Sounds.Play play = sound(c, a.str(5), ((float)a.num(3))/100, a.num(4));
+					if (play.fadeStep == 0)
+						play.fadeIn(a.num(1));
+					JServer.sound.queue(play, track, false);
+					c.resp(play.num);
+				}
+				else
+					c.ack();
+				return true;
+			}
+		}.args(2, Arg.INT, Arg.INT, Arg.INT, Arg.INT, Arg.REST)
+		.usage("usage: fade ms track [volume loops name [@start time] [!priority] [~fade in ms]]"));
+		add(new Command(5, "stop-track") {
+			boolean run(JServer c, Slots a) throws ZError {
+				JServer.sound.stopTrack(a.num(1));
+				c.ack();
+				return true;
+			}
+		}.args(1, Arg.INT)
+		.usage("usage: stop-track track"));
+		add(new Command(6, "mute") {
+			boolean run(JServer c, Slots a) throws ZError {
+				JServer.sound.mute(a.num(1), a.bool(2));
+				c.ack();
+				return true;
+			}
+		}.args(2, Arg.INT, Arg.BOOL)
+		.usage("usage: mute track status"));
+		add(new Command(7, "light") {
+			boolean run(JServer c, Slots a) throws ZError {
+				int stateCount = a.num(1);
+				if (a.count < 3+stateCount*5) {
+					c.error(usage);
+				}
+				LedState[] states = new LedState[stateCount];
+				for (int i=0, j=3; i<stateCount; i++) {
+					LedState state = new LedState();
+					int rgb = a.rgb(j++);
+					String modeStr = a.str(j++);
+					state.freq = a.dbl(j++);
+					state.phase = a.dbl(j++);
+					state.dutyCycle = a.dbl(j++);
+					state.r = (rgb >> 16) & 0xFF;
+					state.g = (rgb >> 8) & 0xFF;
+					state.b = rgb & 0xFF;
+					if (modeStr.equals("solid"))
+						state.mode = LedMode.Solid;
+					if (modeStr.equals("flashing"))
+						state.mode = LedMode.Flashing;
+					if (modeStr.equals("pulsing"))
+						state.mode = LedMode.Pulsing;
+					states[i] = state;
+				}
+				JServer.led.set(c.leds, a.num(2), states);
+				lit(c);
+				c.ack();
+				return true;
+			}
+		}.args(7, Arg.INT, Arg.INT)
+		.repeat(Arg.RGB, Arg.STR, Arg.DOUBLE, Arg.DOUBLE, Arg.DOUBLE)
+		.usage("usage: light stateCount ledNum hex solid|flashing|pulsing frequency phase duty-cycle [hex sol...]"));
+		add(new Command(8, "select", "s") {
+			boolean run(JServer c, Slots a) {
+				c.curBoard = a.num(1);
+				c.ack();
+				return true;
+			}
+		}.args(1, Arg.INT));
+		add(new Command(9, "time") {
+			boolean run(JServer c, Slots a) {
+				c.resp(SwitchMatrix.ms());
+				return true;
+			}
+		});
+		add(new Command(10, "set-trigger") {
+			boolean run(JServer c, Slots a) throws ZError {
+				SwitchMatrix matrix = JServer.matrix;
+				Switch sw = matrix.switches[a.num(1)*matrix.Width+a.num(2)];
+				if (sw == null)
+					c.error("no switch configured for row "+a.num(1)+" col "+a.num(2));
+				sw.trigger = new Triggers.Trigger(c, a.str(3));
+				c.resp("set switch "+sw.name+" to trigger '"+sw.trigger+"'");
+				return true;
+			}
+		}.args(3, Arg.INT, Arg.INT, Arg.REST)
+		.usage("usage: set-trigger row col cmd"));
+		add(new Command(11, "disable-trigger") {
+			boolean run(JServer c, Slots a) throws ZError {
+				SwitchMatrix matrix = JServer.matrix;
+				Switch sw = matrix.switches[a.num(1)*matrix.Width+a.num(2)];
+				if (sw == null)
+					c.error("no switch configured for row "+a.num(1)+" col "+a.num(2));
+				sw.trigger = null;
+				c.resp("disabled trigger for switch "+sw.name);
+				return true;
+			}
+		}.args(2, Arg.INT, Arg.INT)
+		.usage("usage: disable-trigger row col"));
+		add(new Command(12, "end", "q") {
+			boolean run(JServer c, Slots a) {
+				c.ack();
+				System.out.println("Connection closed amicably");
+				return false;
+			}
+		});
+		add(new Command(13, "kill") {
+			boolean run(JServer c, Slots a) {
+				System.exit(0);
+				return false;
+			}
+		});
+		add(new Command(24, "cmd-stats") {
+			boolean run(JServer c, Slots a) {
+				c.resp(stats());
+				return true;
+			}
+		});
+		add(new Command(25, "batch") {
+			boolean run(JServer c, Slots a) throws Exception {
+				return c.batch(a.args);
+			}
+		}.args(1)
+		.usage("usage: batch [board:] cmd args; [board:] cmd args; ..."));
+		add(new Command(26, "trigger-stats") {
+			boolean run(JServer c, Slots a) {
+				c.resp(Triggers.get().stats());
+				return true;
+			}
+		});
+		add(new Command(27, "sound-latency") {
+			boolean run(JServer c, Slots a) {
+				c.resp(JServer.sound.latency());
+				return true;
+			}
+		});
+		add(new Command(28, "sound-stats") {
+			boolean run(JServer c, Slots a) {
+				c.resp(JServer.sound.stats());
+				return true;
+			}
+		});
+		add(new Command(29, "sound-steal") {
+			boolean run(JServer c, Slots a) throws ZError {
+				Sounds.Steal steal;
+				try {
+					steal = Sounds.Steal.valueOf(a.str(2).toUpperCase());
+				} catch (IllegalArgumentException e) {
+					c.error("unknown policy '"+a.str(2)+"'");
+					return true;
+				}
+				JServer.sound.steal(a.num(1), steal);
+				c.ack();
+				return true;
+			}
+		}.args(2, Arg.INT, Arg.STR)
+		.usage("usage: sound-steal track never|oldest|quietest|priority"));
+		add(new Command(41, "spi-stats") {
+			boolean run(JServer c, Slots a) {
+				c.resp(SatIO.stats());
+				return true;
+			}
+		});
+		add(new Command(31, "led-stats") {
+			boolean run(JServer c, Slots a) {
+				c.resp(JServer.led.stats());
+				return true;
+			}
+		});
+		add(new Command(32, "led-hold") {
+			boolean run(JServer c, Slots a) {
+				c.holdLeds = true;
+				c.ack();
+				return true;
+			}
+		});
+		add(new Command(33, "led-commit") {
+			boolean run(JServer c, Slots a) {
+				c.holdLeds = false;
+				JServer.led.commit(c.leds);
+				c.ack();
+				return true;
+			}
+		});
+		add(new Command(34, "leds") {
+			boolean run(JServer c, Slots a) throws ZError {
+				int first = a.num(1), n = (a.count-2)/2;
+				if ((a.count-2)%2 != 0)
+					c.error(usage);
+				checkLed(c, first);
+				checkLed(c, first+n-1);
+				for (int i=0; i<n; i++)
+					JServer.led.set(c.leds, first+i, new LedState[] { LedState.unpack(a.rgb(2+i*2), a.num(3+i*2)) });
+				lit(c);
+				c.ack();
+				return true;
+			}
+		}.args(3, Arg.INT, Arg.RGB, Arg.INT)
+		.repeat(Arg.RGB, Arg.INT)
+		.usage("usage: leds first hex state [hex state ...]"));
+		add(new Command(35, "leds-at") {
+			boolean run(JServer c, Slots a) throws ZError {
+				if ((a.count-1)%3 != 0)
+					c.error(usage);
+				for (int k=1; k<a.count; k+=3)
+					checkLed(c, a.num(k));
+				for (int k=1; k<a.count; k+=3)
+					JServer.led.set(c.leds, a.num(k), new LedState[] { LedState.unpack(a.rgb(k+1), a.num(k+2)) });
+				lit(c);
+				c.ack();
+				return true;
+			}
+		}.args(3, Arg.INT, Arg.RGB, Arg.INT)
+		.repeat(Arg.INT, Arg.RGB, Arg.INT)
+		.usage("usage: leds-at led hex state [led hex state ...]"));
+		add(new Command(36, "leds-same") {
+			boolean run(JServer c, Slots a) throws ZError {
+				for (int k=3; k<a.count; k++)
+					checkLed(c, a.num(k));
+				LedState[] states = { LedState.unpack(a.rgb(1), a.num(2)) }; // never changed once set, so can be shared
+				for (int k=3; k<a.count; k++)
+					JServer.led.set(c.leds, a.num(k), states);
+				lit(c);
+				c.ack();
+				return true;
+			}
+		}.args(3, Arg.RGB, Arg.INT, Arg.INT)
+		.repeat(Arg.INT)
+		.usage("usage: leds-same hex state led [led ...]"));
+		add(new Command(37, "led-group") {
+			boolean run(JServer c, Slots a) throws ZError {
+				int[] leds = new int[a.count-2];
+				for (int i=0; i<leds.length; i++) {
+					checkLed(c, a.num(i+2));
+					leds[i] = a.num(i+2);
+				}
+				JServer.led.groups.put(a.str(1), leds);
+				c.ack();
+				return true;
+			}
+		}.args(2, Arg.STR, Arg.INT)
+		.repeat(Arg.INT)
+		.usage("usage: led-group name led [led ...]"));
+		add(new Command(38, "led-seq") {
+			boolean run(JServer c, Slots a) throws ZError {
+				int length = a.num(2), spread = a.num(3);
+				if ((a.count-4)%2 != 0)
+					c.error(usage);
+				if (length <= 0 || spread < 0)
+					c.error("bad length or spread");
+				int[] times = new int[(a.count-4)/2], colors = new int[times.length];
+				for (int i=0; i<times.length; i++) {
+					times[i] = a.num(4+i*2);
+					colors[i] = a.rgb(5+i*2);
+					if (times[i] < (i>0? times[i-1] : 0) || times[i] > length)
+						c.error("key "+i+" at "+times[i]+" out of order or past the end");
+				}
+				JServer.led.seqs.put(a.str(1), new LedManager.Seq(length, spread, times, colors));
+				c.ack();
+				return true;
+			}
+		}.args(5, Arg.STR, Arg.INT, Arg.INT, Arg.INT, Arg.RGB)
+		.repeat(Arg.INT, Arg.RGB)
+		.usage("usage: led-seq name length spread ms hex [ms hex ...]"));
+		add(new Command(39, "led-play") {
+			boolean run(JServer c, Slots a) throws ZError {
+				int[] leds = JServer.led.groups.get(a.str(1));
+				LedManager.Seq seq = JServer.led.seqs.get(a.str(2));
+				if (leds == null)
+					c.error("no led group '"+a.str(1)+"'");
+				if (seq == null)
+					c.error("no led sequence '"+a.str(2)+"'");
+				JServer.led.play(c.leds, a.str(1), leds, seq, a.has(3)? a.num(3) : 1);
+				lit(c);
+				c.ack();
+				return true;
+			}
+		}.args(2, Arg.STR, Arg.STR, Arg.INT)
+		.usage("usage: led-play group sequence [loops|1, 0 forever]"));
+		add(new Command(40, "led-stop") {
+			boolean run(JServer c, Slots a) {
+				JServer.led.stop(c.leds, a.has(1)? a.str(1) : null);
+				lit(c);
+				c.ack();
+				return true;
+			}
+		}.args(0, Arg.STR)
+		.usage("usage: led-stop [group]"));
+
+		add(new Command(14, "init", "i") {
+			boolean run(JServer c, Slots a) throws Exception {
+				int num = a.num(1);
+				switch (a.str(2)) {
+				case "s16":
+					JServer.boards[num] = c.io.submit(SatIO.CONFIG, () -> new Solenoid16(num)).get();
+					break;
+				default:
+					c.error("unknown board type");
+				}
+				c.curBoard = num;
+				c.resp("init board "+num);
+				return true;
+			}
+		}.args(2, Arg.INT, Arg.STR));
+		add(new BoardCommand(15, "heartbeat", "hb") {
+			void run(JServer c, Solenoid16 board, Slots a) {
+				c.respWhenDone(board.heartbeat(), null);
+			}
+		});
+		add(new BoardCommand(16, "fire", "f") {
+			void run(JServer c, Solenoid16 board, Slots a) {
+				if (a.has(2))
+					c.respWhenDone(board.fireSolenoidFor(a.byt(1), a.num(2), priority(c)), "fired solenoid "+a.num(1));
+				else
+					c.respWhenDone(board.fireSolenoid(a.byt(1), priority(c)), "fired solenoid "+a.num(1));
+			}
+		}.args(1, Arg.BYTE, Arg.INT)
+		.usage("usage: fire <num> [fire time]"));
+		add(new BoardCommand(17, "on") {
+			void run(JServer c, Solenoid16 board, Slots a) {
+				c.respWhenDone(board.turnOnSolenoid(a.byt(1), priority(c)), "solenoid "+a.num(1)+" on");
+			}
+		}.args(1, Arg.BYTE)
+		.usage("usage: on <num>"));
+		add(new BoardCommand(18, "off") {
+			void run(JServer c, Solenoid16 board, Slots a) {
+				c.respWhenDone(board.turnOffSolenoid(a.byt(1), priority(c)), "solenoid "+a.num(1)+" off");
+			}
+		}.args(1, Arg.BYTE)
+		.usage("usage: off <num>"));
+		add(new BoardCommand(19, "toggle") {
+			void run(JServer c, Solenoid16 board, Slots a) {
+				CompletableFuture<byte[]> done = board.toggleSolenoid(a.byt(1), priority(c));
+				c.respWhenDone(done, "solenoid "+a.num(1)+(board.state[a.num(1)]? " on":" off"));
+			}
+		}.args(1, Arg.BYTE)
+		.usage("usage: toggle <num>"));
+		add(new BoardCommand(21, "disable", "d") {
+			void run(JServer c, Solenoid16 board, Slots a) {
+				c.respWhenDone(board.disableSolenoid(a.byt(1)), "solenoid "+a.num(1)+" disabled");
+			}
+		}.args(1, Arg.BYTE));
+		add(new BoardCommand(20, "inits", "is") {
+			void run(JServer c, Solenoid16 board, Slots a) {
+			}
+		}
+		.usage("usage: inits momentary|on-off|input|triggered <num> ...")
+		.sub(new BoardCommand(0, "momentary", "m") {
+			void run(JServer c, Solenoid16 board, Slots a) {
+				CompletableFuture<byte[]> done;
+				if (a.has(3))
+					done = board.initMomentary(a.byt(2), a.num(3));
+				else
+					done = board.initMomentary(a.byt(2));
+				c.respWhenDone(done, "solenoid "+a.num(2)+" = momentary");
+			}
+		}.args(1, Arg.BYTE, Arg.INT)
+		.usage("usage: init momentary <num> [fire time|50]"))
+		.sub(new BoardCommand(0, "on-off", "oo") {
+			void run(JServer c, Solenoid16 board, Slots a) {
+				CompletableFuture<byte[]> done;
+				if (a.has(5))
+					done = board.initOnOff(a.byt(2), a.num(3), a.byt(4), a.byt(5));
+				else if (a.has(4))
+					done = board.initOnOff(a.byt(2), a.num(3), a.byt(4));
+				else if (a.has(3))
+					done = board.initOnOff(a.byt(2), a.num(3));
+				else
+					done = board.initOnOff(a.byt(2));
+				c.respWhenDone(done, "solenoid "+a.num(2)+" = on-off");
+			}
+		}.args(1, Arg.BYTE, Arg.INT, Arg.BYTE, Arg.BYTE)
+		.usage("usage: init on-off <num> [max on time|0] [pulseOffTime|0]"))
+		.sub(new BoardCommand(0, "input", "i") {
+			void run(JServer c, Solenoid16 board, Slots a) {
+				CompletableFuture<byte[]> done;
+				if (a.has(3))
+					done = board.initInput(a.byt(2), a.num(3));
+				else
+					done = board.initInput(a.byt(2));
+				c.respWhenDone(done, "solenoid "+a.num(2)+" = input");
+			}
+		}.args(1, Arg.BYTE, Arg.INT)
+		.usage("usage: init input <num> [settle time|30]"))
+		.sub(new BoardCommand(0, "triggered", "t") {
+			void run(JServer c, Solenoid16 board, Slots a) {
+				CompletableFuture<byte[]> done;
+				if (a.has(5))
+					done = board.initTriggered(a.byt(2), a.byt(3), a.num(4), a.num(5));
+				else if (a.has(4))
+					done = board.initTriggered(a.byt(2), a.byt(3), a.num(4));
+				else
+					done = board.initTriggered(a.byt(2), a.byt(3));
+				c.respWhenDone(done, "solenoid "+a.num(2)+" = triggered");
+			}
+		}.args(2, Arg.BYTE, Arg.BYTE, Arg.INT, Arg.INT)
+		.usage("usage: init triggered <num> <triggered by> [min time|0] [max time|50]")));
+	}
+}
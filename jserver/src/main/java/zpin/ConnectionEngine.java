@@ -0,0 +1,95 @@
+package zpin;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * One selector thread for all connections, plus a small fixed pool that runs their commands.
+ * A connection's reads are paused while a worker has it, so each connection's commands still
+ * run one at a time and in order.
+ */
+public class ConnectionEngine extends Thread {
+	final Selector selector;
+	final ServerSocketChannel server;
+	final ExecutorService workers;
+	final boolean isLive;
+
+	// connections whose interest ops changed off the selector thread
+	private final Queue<JServer> updates = new ConcurrentLinkedQueue<>();
+
+	public ConnectionEngine(int port, int nWorkers, boolean isLive) throws IOException {
+		super("connections");
+		this.isLive = isLive;
+		selector = Selector.open();
+		server = ServerSocketChannel.open();
+		server.socket().setReuseAddress(true);
+		server.bind(new InetSocketAddress(port));
+		server.configureBlocking(false);
+		server.register(selector, SelectionKey.OP_ACCEPT);
+		workers = Executors.newFixedThreadPool(nWorkers, new ThreadFactory() {
+			int n = 0;
+			public Thread newThread(Runnable r) {
+				return new Thread(r, "worker "+(n++));
+			}
+		});
+	}
+
+	void update(JServer conn) {
+		updates.add(conn);
+		selector.wakeup();
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			try {
+				selector.select();
+				JServer conn;
+				while ((conn = updates.poll()) != null)
+					conn.updateInterest();
+
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					if (!key.isValid()) continue;
+					if (key.isAcceptable()) {
+						accept();
+						continue;
+					}
+					conn = (JServer)key.attachment();
+					if (key.isWritable())
+						conn.flush();
+					if (key.isValid() && key.isReadable()) {
+						conn.pauseReads();
+						workers.execute(conn);
+					}
+				}
+			} catch (Exception e) {
+				System.out.println("connection engine error");
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel = server.accept();
+		if (channel == null) return;
+		System.out.println("New connection from " + channel.socket().getInetAddress());
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+		JServer conn = new JServer(this, channel, isLive);
+		conn.key = channel.register(selector, SelectionKey.OP_READ, conn);
+		conn.greet();
+	}
+}
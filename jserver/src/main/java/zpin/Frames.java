@@ -0,0 +1,242 @@
+package zpin;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Binary framing, switched to with the 'binary' command after the version handshake.
+ * All values are big endian.
+ *
+ * request:  u16 length, i16 seq, u8 opcode (see Commands), i8 board (-1 = current board), args...
+ * response: u16 length, i16 seq, u16 status, values...
+ *
+ * length counts the bytes after the length field.  Each arg/value is a u8 type tag followed by
+ * INT: i32, DOUBLE: f64, BOOL: u8, STRING: u16 length + utf8,
+ * FRAME: u16 length + a request without its seq (u8 opcode, i8 board, args...), used by batch.
+ * Unsolicited frames (switch events) have seq 0 and a 1xx status.
+ */
+public class Frames {
+	static final byte INT = 1;
+	static final byte DOUBLE = 2;
+	static final byte BOOL = 3;
+	static final byte STRING = 4;
+	static final byte FRAME = 5;
+
+	static final int SW_EVENT = 101; // INT row, INT col, BOOL state, DOUBLE when
+
+	static final int MAX_ARGS = 64;
+	static final int MAX_FRAME = 0xFFFF;
+
+	public static class FrameArgs implements Args {
+		int seq;
+		int opcode;
+		int board;
+		int count;
+		final byte[] types = new byte[MAX_ARGS];
+		final int[] ints = new int[MAX_ARGS];
+		final double[] dbls = new double[MAX_ARGS];
+		final String[] strs = new String[MAX_ARGS];
+		byte[] src; // the frame's bytes, FRAME args are offsets into it
+
+		// reads one frame body (everything after the length), IllegalArgumentException if it's malformed
+		void decode(ByteBuffer buf) {
+			need(buf, 2);
+			seq = buf.getShort();
+			decodeRequest(buf);
+		}
+
+		// reads the FRAME arg index of parent
+		void decode(FrameArgs parent, int index) {
+			int off = parent.ints[index];
+			int len = ((parent.src[off] & 0xFF) << 8) | (parent.src[off+1] & 0xFF);
+			seq = parent.seq;
+			decodeRequest(ByteBuffer.wrap(parent.src, off+2, len));
+		}
+
+		private void decodeRequest(ByteBuffer buf) {
+			src = buf.array();
+			need(buf, 2);
+			opcode = buf.get() & 0xFF;
+			board = buf.get();
+			count = 1;
+			while (buf.hasRemaining()) {
+				if (count >= MAX_ARGS)
+					throw new IllegalArgumentException("too many arguments");
+				byte type = buf.get();
+				types[count] = type;
+				strs[count] = null;
+				switch (type) {
+				case INT:
+					need(buf, 4);
+					ints[count] = buf.getInt();
+					break;
+				case DOUBLE:
+					need(buf, 8);
+					dbls[count] = buf.getDouble();
+					break;
+				case BOOL:
+					need(buf, 1);
+					ints[count] = buf.get();
+					break;
+				case STRING: {
+					need(buf, 2);
+					int len = buf.getShort() & 0xFFFF;
+					need(buf, len);
+					strs[count] = new String(buf.array(), buf.arrayOffset()+buf.position(), len, StandardCharsets.UTF_8);
+					buf.position(buf.position()+len);
+					break;
+				}
+				case FRAME: {
+					ints[count] = buf.arrayOffset()+buf.position(); // of its length
+					need(buf, 2);
+					int len = buf.getShort() & 0xFFFF;
+					need(buf, len);
+					buf.position(buf.position()+len);
+					break;
+				}
+				default:
+					throw new IllegalArgumentException("unknown argument type "+type);
+				}
+				count++;
+			}
+		}
+
+		private static void need(ByteBuffer buf, int n) {
+			if (buf.remaining() < n)
+				throw new IllegalArgumentException("frame truncated");
+		}
+
+		public String name() {
+			Commands.Command cmd = Commands.get(opcode);
+			return cmd != null? cmd.name : "#"+opcode;
+		}
+		public int count() {
+			return count;
+		}
+		public String str(int index) {
+			switch (types[index]) {
+			case STRING:
+				return strs[index];
+			case INT:
+				return Integer.toString(ints[index]);
+			case DOUBLE:
+				return Double.toString(dbls[index]);
+			case FRAME: {
+				FrameArgs sub = new FrameArgs();
+				sub.decode(this, index);
+				return "{"+(sub.board>=0? sub.board+": " : "")+sub+"}";
+			}
+			default:
+				return ints[index] != 0? "true" : "false";
+			}
+		}
+		public int num(int index) {
+			switch (types[index]) {
+			case INT:
+				return ints[index];
+			case STRING:
+				return Integer.parseInt(strs[index]);
+			default:
+				throw new NumberFormatException("argument "+index+" is not an int");
+			}
+		}
+		public double dbl(int index) {
+			switch (types[index]) {
+			case DOUBLE:
+				return dbls[index];
+			case INT:
+				return ints[index];
+			case STRING:
+				return Double.parseDouble(strs[index]);
+			default:
+				throw new NumberFormatException("argument "+index+" is not a number");
+			}
+		}
+		public boolean bool(int index) {
+			if (types[index] == STRING)
+				return strs[index].equals("true");
+			return ints[index] != 0;
+		}
+		public int rgb(int index) {
+			if (types[index] == INT)
+				return ints[index] & 0xFFFFFF;
+			String hex = str(index);
+			if (hex.startsWith("#")) hex = hex.substring(1);
+			return Integer.parseInt(hex.substring(0, 6), 16);
+		}
+		public String rest(int index) {
+			StringBuilder s = new StringBuilder();
+			for (int i=index; i<count; i++) {
+				if (i > index) s.append(' ');
+				s.append(str(i));
+			}
+			return s.toString();
+		}
+
+		public String toString() {
+			return name()+(count>1? " "+rest(1) : "");
+		}
+	}
+
+	// writes a complete response frame, including the length
+	static void encode(ByteBuffer out, int seq, int status, Object value) {
+		int start = out.position();
+		out.putShort((short)0);
+		out.putShort((short)seq);
+		out.putShort((short)status);
+		putValue(out, value);
+		out.putShort(start, (short)(out.position()-start-2));
+	}
+
+	static void putValue(ByteBuffer out, Object value) {
+		if (value == null)
+			return;
+		if (value instanceof Double || value instanceof Float) {
+			out.put(DOUBLE);
+			out.putDouble(((Number)value).doubleValue());
+		}
+		else if (value instanceof Long && ((Long)value).longValue() != ((Long)value).intValue()) {
+			out.put(DOUBLE);
+			out.putDouble((Long)value);
+		}
+		else if (value instanceof Number) {
+			out.put(INT);
+			out.putInt(((Number)value).intValue());
+		}
+		else if (value instanceof Boolean) {
+			out.put(BOOL);
+			out.put((byte)((Boolean)value? 1 : 0));
+		}
+		else if (value instanceof int[]) {
+			for (int v : (int[])value) {
+				out.put(INT);
+				out.putInt(v);
+			}
+		}
+		else {
+			String str = value.toString();
+			if (str.isEmpty())
+				return;
+			byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+			out.put(STRING);
+			out.putShort((short)bytes.length);
+			out.put(bytes);
+		}
+	}
+
+	static void encodeEvent(ByteBuffer out, SwitchMatrix.Event e) {
+		int start = out.position();
+		out.putShort((short)0);
+		out.putShort((short)0);
+		out.putShort((short)SW_EVENT);
+		out.put(INT);
+		out.putInt(e.row);
+		out.put(INT);
+		out.putInt(e.col);
+		out.put(BOOL);
+		out.put((byte)(e.state? 1 : 0));
+		out.put(DOUBLE);
+		out.putDouble(e.when);
+		out.putShort(start, (short)(out.position()-start-2));
+	}
+}
@@ -0,0 +1,73 @@
+package zpin;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts of non-negative values (e.g. latencies in us) in log scale buckets, each within 1/8
+ * of its value.  Safe to record from any thread.
+ */
+public class Histogram {
+	static final int SUB = 8; // buckets per power of two
+	static final int LINEAR = 2*SUB; // values below this get a bucket each
+
+	private final AtomicLongArray counts = new AtomicLongArray(index(Long.MAX_VALUE)+1);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	static int index(long v) {
+		if (v < LINEAR) return (int)v;
+		int exp = 63 - Long.numberOfLeadingZeros(v); // >= 4
+		int sub = (int)(v >>> (exp-3)) & (SUB-1);
+		return LINEAR + (exp-4)*SUB + sub;
+	}
+
+	// largest value that lands in bucket i
+	static long upper(int i) {
+		if (i < LINEAR) return i;
+		int exp = (i-LINEAR)/SUB + 4;
+		long sub = (i-LINEAR)%SUB;
+		return ((SUB+sub+1) << (exp-3)) - 1;
+	}
+
+	public void record(long v) {
+		if (v < 0) v = 0;
+		counts.incrementAndGet(index(v));
+		count.incrementAndGet();
+		long m;
+		while (v > (m = max.get()) && !max.compareAndSet(m, v));
+	}
+
+	public long count() {
+		return count.get();
+	}
+
+	public long max() {
+		return max.get();
+	}
+
+	// smallest bucket bound that at least p (0-1) of the values are at or under
+	public long percentile(double p) {
+		long n = count.get();
+		if (n == 0) return 0;
+		long target = Math.max(1, (long)Math.ceil(p*n));
+		long seen = 0;
+		for (int i=0; i<counts.length(); i++) {
+			seen += counts.get(i);
+			if (seen >= target)
+				return Math.min(upper(i), max.get());
+		}
+		return max.get();
+	}
+
+	public void reset() {
+		for (int i=0; i<counts.length(); i++)
+			counts.set(i, 0);
+		count.set(0);
+		max.set(0);
+	}
+
+	public String toString() {
+		return "n="+count()+" p50="+percentile(.5)+" p90="+percentile(.9)+" p99="+percentile(.99)+" max="+max();
+	}
+}
@@ -1,34 +1,55 @@
 package zpin;
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
 
-import zpin.LedManager.LedMode;
-import zpin.LedManager.LedState;
-import zpin.Sounds.Channel;
-import zpin.SwitchMatrix.Switch;
+import zpin.SwitchMatrix.Event;
+import zpin.SwitchMatrix.EventListener;
 
 
 /**
  * Hello world!
  *
  */
-public class JServer extends Thread
+public class JServer implements EventListener, Runnable
 {
 	public static String version = "0.0.1";
 	public static int nConnections = 0;
+	static final int MAX_PENDING = 1<<20; // bytes queued for a client that isn't reading before we give up on it
 	
-    private Socket socket;
-    private PrintWriter out;
-    private BufferedReader in;
-    public int connNum = ++nConnections;
+    private final ConnectionEngine engine;
+    private final SocketChannel channel;
+    SelectionKey key;
     
-    public PrintWriter logCmd = new PrintWriter("cmds.log");
+    private final ByteBuffer inBuf = ByteBuffer.allocateDirect(Frames.MAX_FRAME+2);
+    private final ByteBuffer outBuf = ByteBuffer.allocateDirect(Frames.MAX_FRAME+2);
+    private final Queue<ByteBuffer> pending = new ArrayDeque<>(); // guarded by writeLock
+    private int pendingBytes = 0;
+    private final Object writeLock = new Object();
+    private volatile boolean reading = true;
+    private volatile boolean writing = false;
+    private volatile boolean closing = false;
+    private boolean broken = false; // a write failed, guarded by writeLock
+    private boolean greeted = false;
+    
+    boolean binary = false; // framed, see Frames
+    final Frames.FrameArgs frame = new Frames.FrameArgs();
+    final byte[] frameIn = new byte[Frames.MAX_FRAME+2];
+    int frameLen = 0;
+    public final int connNum;
+    private final JServer replyTo; // for a connection's trigger runner, the connection
+    private JServer triggers = null;
+    
+    int status = 0; // of the last response, for the command log
+    boolean skipLog = false; // set by a command that isn't worth logging this time
+    boolean holdLeds = false; // light only stages until led-commit
+    final LedManager.Stage leds = new LedManager.Stage(); // this connection's light changes until they're committed
     
     static SwitchMatrix matrix = SwitchMatrix.get();
     static Sounds sound = Sounds.get();
@@ -36,41 +57,181 @@ public class JServer extends Thread
     
     public boolean isLive;
 
-    public JServer(Socket socket, boolean isLive) throws IOException {
-        this.socket = socket;
+    public JServer(ConnectionEngine engine, SocketChannel channel, boolean isLive) throws IOException {
+        this.engine = engine;
+        this.channel = channel;
         this.isLive = isLive;
-        this.start();
+        this.connNum = ++nConnections;
+        this.replyTo = null;
     	if (isLive)
         	led.init();
 //        led.start();
     }
     
-    String seqPrefix() {
+    // runs c's triggers with its own command state, replying through c, so a trigger never waits
+    // for whatever command c is in the middle of
+    private JServer(JServer c) {
+    	this.engine = c.engine;
+    	this.channel = c.channel;
+    	this.isLive = c.isLive;
+    	this.connNum = c.connNum;
+    	this.replyTo = c;
+    }
+    
+    // connection thread, when a trigger is set
+    JServer triggerRunner() {
+    	if (triggers == null)
+    		triggers = new JServer(this);
+    	return triggers;
+    }
+    
+    static String seqPrefix(int seq) {
     	if (seq != 0) return "#"+seq+" ";
     	return "";
     }
     
-    private void log(String str) {
-      if (!str.equals("Received command 'sw'") && !str.endsWith(" Response: 200 empty"))
-        logCmd.println(str);
+    private void send(String line) {
+    	synchronized (writeLock) {
+    		outBuf.clear();
+    		outBuf.put((line + "\r\n").getBytes(StandardCharsets.UTF_8));
+    		write(outBuf);
+    	}
+    }
+    
+    private void sendFrame(int seq, int status, Object value) {
+    	synchronized (writeLock) {
+    		outBuf.clear();
+    		Frames.encode(outBuf, seq, status, value);
+    		write(outBuf);
+    	}
+    }
+    
+    // writes straight to the socket if nothing is queued, otherwise queues for the selector thread
+    private void write(ByteBuffer buf) {
+    	buf.flip();
+    	if (broken || (closing && !channel.isOpen())) return;
+    	if (pending.isEmpty()) {
+    		try {
+    			channel.write(buf);
+    		} catch (IOException e) {
+    			// any thread can be replying, so just give up on it; it's closed once the selector sees the socket's gone
+    			System.out.println("error writing to connection "+connNum);
+    			broken = true;
+    			closing = true;
+    			return;
+    		}
+    	}
+    	queue(buf);
+    }
+    
+    // leaves what's left of buf for the selector thread to write
+    private void queue(ByteBuffer buf) {
+    	if (broken || (closing && !channel.isOpen())) return;
+    	if (buf.hasRemaining()) {
+    		if (pendingBytes + buf.remaining() > MAX_PENDING) {
+    			System.out.println("connection "+connNum+" not reading, dropping it");
+    			close();
+    			return;
+    		}
+    		ByteBuffer copy = ByteBuffer.allocate(buf.remaining());
+    		copy.put(buf);
+    		copy.flip();
+    		pending.add(copy);
+    		pendingBytes += copy.remaining();
+    		if (!writing) {
+    			writing = true;
+    			engine.update(this);
+    		}
+    	}
+    }
+    
+    // selector thread
+    void flush() {
+    	synchronized (writeLock) {
+    		try {
+	    		while (!pending.isEmpty()) {
+	    			ByteBuffer buf = pending.peek();
+	    			pendingBytes -= channel.write(buf);
+	    			if (buf.hasRemaining())
+	    				return;
+	    			pending.remove();
+	    		}
+    		} catch (IOException e) {
+    			System.out.println("error writing to connection "+connNum);
+    			close();
+    			return;
+    		}
+    		writing = false;
+    		if (closing)
+    			close();
+    		else
+    			updateInterest();
+    	}
+    }
+    
+    // selector thread
+    void updateInterest() {
+    	if (key.isValid())
+    		key.interestOps((reading? SelectionKey.OP_READ : 0) | (writing? SelectionKey.OP_WRITE : 0));
+    }
+    
+    // selector thread, before handing the connection to a worker
+    void pauseReads() {
+    	reading = false;
+    	updateInterest();
+    }
+    
+    void greet() {
+    	send("owo?");
     }
     
     void error(String str) throws ZError {
-    	out.print(seqPrefix()+"400 " + str + "\r\n");
-    	out.flush();
-    	log(""+connNum+" Error: 400 " + str);
+    	resp(str, 400);
     	throw new ZError("Client error " + str);
     }
     void internalError() {
-    	out.print(seqPrefix()+"500" + "\r\n");
-    	out.flush();
-    	log(""+connNum+" internal error");
+    	resp(null, 500);
+    }
+    // a command threw e: error() has already replied, anything else (e.g. the sound queue being full) hasn't
+    void failed(ZError e) {
+    	if (status == 0 && async == null)
+    		resp(e.getMessage(), 500);
     }
     
     void resp(Object str, int status) {
-    	out.print(seqPrefix()+"" + status + " " + str + "\r\n");
-    	out.flush();
-    	log(""+connNum+" Response: " + status + " " + str);
+    	this.status = status;
+    	if (batching) return; // batch only keeps the status
+    	if (triggering && status < 300) return;
+    	reply(binary, seq, status, str);
+    }
+    private void reply(boolean binary, int seq, int status, Object str) {
+    	if (replyTo != null)
+    		replyTo.reply(binary, seq, status, str);
+    	else if (binary)
+    		sendFrame(seq, status, str);
+    	else
+    		send(seqPrefix(seq)+status+(str != null? " "+str : ""));
+    }
+    
+    CompletableFuture<Integer> async = null; // status of the command just run, if it's waiting on the SPI worker
+    
+    // replies once done completes (from the SPI worker), with str or else done's result, or 500 if it failed
+    void respWhenDone(CompletableFuture<?> done, Object str) {
+    	int seq = this.seq;
+    	boolean binary = this.binary, batching = this.batching, triggering = this.triggering;
+    	status = 0;
+    	async = done.handle((r, e) -> {
+    		if (e != null) {
+    			System.err.println("Error in board IO for #"+seq);
+    			e.printStackTrace();
+    			if (!batching)
+    				reply(binary, seq, 500, null);
+    			return 500;
+    		}
+    		if (!batching && !triggering)
+    			reply(binary, seq, 200, str != null? str : r);
+    		return 200;
+    	});
     }
     void resp(Object str) {
     	resp(str, 200);
@@ -82,39 +243,134 @@ public class JServer extends Thread
     	resp("", 200);
     }
     
+    // unsolicited, untagged by seq; from the switch scan thread, so only queued for the selector
+    // thread to write, never touching the socket
+    public void switchEvent(Event e) {
+    	if (replyTo != null) {
+    		replyTo.switchEvent(e);
+    		return;
+    	}
+    	synchronized (writeLock) {
+    		outBuf.clear();
+    		if (binary)
+    			Frames.encodeEvent(outBuf, e);
+    		else
+    			outBuf.put(("!sw " + e + "\r\n").getBytes(StandardCharsets.UTF_8));
+    		outBuf.flip();
+    		queue(outBuf);
+    	}
+    }
+    
+    // next complete line in inBuf, or null
+    private String nextLine() {
+    	for (int i=inBuf.position(); i<inBuf.limit(); i++) {
+    		if (inBuf.get(i) == '\n') {
+    			int len = i - inBuf.position();
+    			if (len > 0 && inBuf.get(i-1) == '\r') len--;
+    			inBuf.get(frameIn, 0, len);
+    			inBuf.position(i+1);
+    			return new String(frameIn, 0, len, StandardCharsets.UTF_8);
+    		}
+    	}
+    	return null;
+    }
+    
+    // decodes the next complete frame in inBuf into frame.  One that can't be is answered 400 and
+    // skipped, its length says where the next starts
+    private boolean nextFrame() {
+    	while (true) {
+	    	if (inBuf.remaining() < 2) return false;
+	    	int len = inBuf.getShort(inBuf.position()) & 0xFFFF;
+	    	if (inBuf.remaining() < 2+len) return false;
+	    	inBuf.position(inBuf.position()+2);
+	    	inBuf.get(frameIn, 0, len);
+	    	frameLen = len;
+	    	try {
+	    		frame.decode(ByteBuffer.wrap(frameIn, 0, len));
+	    		return true;
+	    	} catch (RuntimeException e) {
+	    		int seq = len >= 2? (short)((frameIn[0] & 0xFF) << 8 | frameIn[1] & 0xFF) : 0;
+	    		System.out.println("connection "+connNum+" sent a bad frame: "+e.getMessage());
+	    		sendFrame(seq, 400, e.getMessage());
+	    	}
+    	}
+    }
+    
+    // worker thread, reads are paused until this returns
     @Override
     public void run() {
+    	boolean eof = false;
         try {
-			out = new PrintWriter(socket.getOutputStream(), true);
-	        in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-	        out.println("owo?");
-	        {
-	        	String first = in.readLine();
-	        	seq = 0;
-	    		if ( first.startsWith("#")) {
-	    			String[] p = first.split(" ", 2);
-	    			seq = Integer.parseInt(p[0].substring(1));
-	    			first = p[1];
-	    		}
-	        	if (!first.equals(version))
-	        		error("Incorrect version "+first);
-	        	out.println((seq!=0? "#"+seq+" ":"")+"200 "+(this.isLive?"live":"sim"));
-	        	while (this.handleCommand());
-	        }
-	        
+        	int n;
+        	while ((n = channel.read(inBuf)) > 0);
+        	eof = n < 0;
+        	inBuf.flip();
+        	try {
+	        	while (!closing) {
+	        		String input;
+	        		if (!greeted) {
+	        			if ((input = nextLine()) == null) break;
+	    	        	String first = input;
+	    	        	seq = 0;
+	    	    		if ( first.startsWith("#")) {
+	    	    			String[] p = first.split(" ", 2);
+	    	    			seq = Integer.parseInt(p[0].substring(1));
+	    	    			first = p[1];
+	    	    		}
+	    	        	if (!first.equals(version))
+	    	        		error("Incorrect version "+first);
+	    	        	send((seq!=0? "#"+seq+" ":"")+"200 "+(this.isLive?"live":"sim"));
+	    	        	greeted = true;
+	    	        	continue;
+	        		}
+	        		
+	        		if (binary) {
+	        			if (!nextFrame()) break;
+	        			input = null;
+	        		}
+	        		else if ((input = nextLine()) == null)
+	        			break;
+	        		if (!handleCommand(input))
+	        			closing = true;
+	        	}
+        	} finally {
+        		inBuf.compact();
+        	}
+        	if (!closing && !inBuf.hasRemaining()) {
+        		System.out.println("connection "+connNum+" sent an oversized command");
+        		closing = true;
+        	}
 		} catch (Exception e) {
+			closing = true;
 			System.out.println("connection fatal error: ");
 			e.printStackTrace();
+			led.clear();
 			sound.stopAll();
-				
 		} finally {
-			try {
-				this.socket.close();
-				System.out.println("connection closed");
-			} catch (IOException e1) {
-				System.out.println("error closing connection");
-				e1.printStackTrace();
-			}
+			if (eof)
+				close();
+			else if (!closing) {
+	        	reading = true;
+	        	engine.update(this);
+	        }
+			else synchronized (writeLock) {
+	        	if (!writing)
+	        		close();
+	        }
+		}
+    }
+    
+    void close() {
+    	closing = true;
+		matrix.unsubscribe(this);
+		if (!channel.isOpen()) return;
+		try {
+			key.cancel();
+			channel.close();
+			System.out.println("connection closed");
+		} catch (IOException e1) {
+			System.out.println("error closing connection");
+			e1.printStackTrace();
 		}
     }
     
@@ -124,376 +380,239 @@ public class JServer extends Thread
 	String lastCommand = "";
 	int seq = 0;
     
-    private boolean handleCommand() {
+    final Args.Text text = new Args.Text();
+    final Commands.Slots slots = new Commands.Slots();
+    
+    // input is a text command, or null for the frame just decoded
+    synchronized boolean handleCommand(String input) {
+    	long start = System.nanoTime();
+    	status = 0;
+    	skipLog = false;
+    	async = null;
     	try {
-    		String input;
-    		if (matrix.triggeredCommands.isEmpty())
-    			input = in.readLine();
-    		else
-    			input = matrix.triggeredCommands.remove();
-    		if (input == null) return false;
-    		input = input.trim();
-    		
-    		seq = 0;
-    		if ( input.startsWith("#")) {
-    			String[] p = input.split(" ", 2);
-    			seq = Integer.parseInt(p[0].substring(1));
-    			input = p[1];
+    		int boardNum = -1;
+    		if (input == null) {
+    			seq = frame.seq;
+    			boardNum = frame.board;
+    		}
+    		else {
+	    		input = input.trim();
+	    		
+	    		seq = 0;
+	    		if ( input.startsWith("#")) {
+	    			int space = input.indexOf(' ');
+	    			seq = Integer.parseInt(input.substring(1, space));
+	    			input = input.substring(space+1);
+	    		}
     		}
-    		
     			
+			Commands.Command cmd = null;
 			try {
-				if (input.length() == 0)
-					input = lastCommand;
-				log("Received command '" + input + "'");
+				Args args;
+				if (input == null) {
+					args = frame;
+					cmd = Commands.get(frame.opcode);
+				}
+				else {
+					if (input.length() == 0)
+						input = lastCommand;
+					int colon = boardPrefix(input);
+					if (colon != -1) {
+						boardNum = Integer.parseInt(input.substring(0, colon));
+						input = input.substring(colon+1).trim();
+					}
+					args = text.set(input);
+					cmd = Commands.get(args.name());
+				}
 				int oldCurBoard = -2;
-				if (input.matches("^\\d+:.*")) {
-					String[] p = input.split(":", 2);
-					input = p[1].trim();
+				if (boardNum >= 0) {
 					oldCurBoard = curBoard;
-					curBoard = Integer.parseInt(p[0]);
-					logCmd.print("board "+curBoard+": ");
+					curBoard = boardNum;
 				}
-				final String[] parts = input.split(" ");
-				boolean success = (new Object() {
-		    		void expect(int args) throws Exception {
-						if (parts.length-1 < args) 
-							error("Expected at least "+args+" arguments");
-					}
-		    		int num(int index) throws Exception {
-						expect(index);
-						try {
-							int i = Integer.parseInt(parts[index]);
-							return i;
-						} catch (NumberFormatException e) {
-							error("Expected number for argument "+index);
-							return -1;
-						}
-					}
-		    		byte byt(int index) throws Exception {
-		    			int i = num(index);
-		    			if ((i & 0xFFFFFF00) != 0)
-		    				error("Expected argument "+index+" to be a byte");
-		    			return (byte)i;
-		    		}
-		    		public boolean process() throws Exception {
-		    			switch (parts[0]) {
-						case "sw":
-						case "switch-event":
-//							SwitchMatrix.lock();
-							try {
-								if (matrix.events.isEmpty())
-									resp("empty");
-								else {
-									String events = "";
-									while (!matrix.events.isEmpty()) {
-										events += matrix.events.remove().toString();
-										if (!matrix.events.isEmpty()) events += ";";
-									}
-									resp(events, 200);
-								}
-							}
-							finally {
-//								SwitchMatrix.unlock();
-							}
-							return true;
-						case "sw-state":
-							String response = "";
-							int num = 0;
-							for (int i=0; i<matrix.switches.length; i++) {
-								num = (num<<1)|(matrix.switches[i].state? 1:0);
-								if ((i+1)%32 == 0) {
-									response += num+" ";
-									num = 0;
-								}
-							}
-							resp(response);
-							return true;
-						case "sw-config": {
-							if (parts.length != 6)
-								error("usage: sw-config row col minOnTime minOffTime inverted");
-							int row = num(1);
-							int col = num(2);
-							int minOnTime = num(3);
-							int minOffTime = num(4);
-							boolean inverted = parts[5].equals("true");
-							matrix.switches[row*matrix.Width+col].minOnTime = minOnTime;
-							matrix.switches[row*matrix.Width+col].minOffTime = minOffTime;
-							matrix.switches[row*matrix.Width+col].inverted = inverted;
-							System.out.println("Configure switch "+row+","+col);
-							ack();
-							return true;
-						}
-						case "sound": {
-							if (parts.length < 6)
-								error("usage: sound volume track solo loops resume name ");
-							int volume = num(1);
-							int track = num(2);
-							boolean solo = parts[3].equals("true");
-							int loops = num(4);
-							boolean resume = parts[5].equals("true");
-							if (solo)
-								sound.tracks[track].stop();
-								Sounds.Play play = sound.playSound(
-									String.join(" ", Arrays.asList(parts).subList(6, parts.length)), 
-									track, 
-									((float)volume)/100,
-									resume
-								);
-							if (play != null) {
-								play.loops = loops;
-								resp(play.num);
-							}
-							else
-								resp(201);
-							return true;
-						}
-						case "stop-track": {
-							if (parts.length < 2)
-								error("usage: stop-track track");
-							int track = num(1);
-							sound.tracks[track].stop();
-							ack();
-							return true;
-						}
-						case "mute": {
-							if (parts.length < 3)
-								error("usage: mute track status");
-							int track = num(1);
-							boolean muted = parts[2].equals("true");
-							sound.tracks[track].muted += muted? 1 : -1;
-							return true;
-						}
-						case "light":
-							if (parts.length < 8)
-								error("usage: light stateCount ledNum hex solid|flashing|pulsing frequency phase duty-cycle [hex sol...]");
-							int stateCount = num(1);
-							int n = num(2);
-							int j = 3;
-							LedState[] states = new LedState[stateCount];
-							for (int i=0; i<stateCount; i++) {
-								LedState state = new LedState();
-								String hex = parts[j++];
-								if (hex.startsWith("#")) hex = hex.substring(1);
-								String modeStr = parts[j++];
-								state.freq = Double.parseDouble(parts[j++]);
-								state.phase = Double.parseDouble(parts[j++]);
-								state.dutyCycle = Double.parseDouble(parts[j++]);
-								state.r = Integer.valueOf(hex.substring(0,2), 16);
-								state.g = Integer.valueOf(hex.substring(2,4), 16);
-								state.b = Integer.valueOf(hex.substring(4,6), 16);
-//								System.out.log("r "+state.r+" g "+state.g+" b "+state.b);
-								if (modeStr.equals("solid"))
-									state.mode = LedMode.Solid;
-								if (modeStr.equals("flashing"))
-									state.mode = LedMode.Flashing;
-								if (modeStr.equals("pulsing"))
-									state.mode = LedMode.Pulsing;
-								states[i] = state;
-							}
-							led.leds[n] = states;
-							ack();
-							return true;
-						case "s":
-						case "select":
-							curBoard = num(1);
-							ack();
-							return true;
-						case "time":
-							resp(SwitchMatrix.ms());
-							return true;
-	    				case "set-trigger": {
-							if (parts.length < 4)
-								error("usage: set-trigger row col cmd");
-							else {
-								int row = num(1);
-								int col = num(2);
-								String tCmd = String.join(" ", Arrays.asList(parts).subList(3, parts.length));
-										
-								Switch sw = matrix.switches[row*matrix.Width+col];
-								if (sw == null)
-									error("no switch configured for row "+row+" col "+col);
-								else {
-									sw.triggerCmd = tCmd;
-									resp("set switch "+sw.name+" to trigger '"+tCmd+"'");
-								}
-							}
-							return true;
-	    				}
-	    				case "disable-trigger":
-							if (parts.length != 3)
-								error("usage: disable-trigger row col");
-							else {
-								int row = num(1);
-								int col = num(2);
-								Switch sw = matrix.switches[row*matrix.Width+col];
-								if (sw == null)
-									error("no switch configured for row "+row+" col "+col);
-								else {
-									sw.triggerCmd = null;
-									resp("disabled trigger for switch "+sw.name);
-								}
-							}
-							return true;
-						case "end":
-						case "q":
-				        	ack();
-				        	System.out.println("Connection closed amicably");
-							return false;
-						case "kill":
-							System.exit(0);
-		    			}
-		    			
-		    			try {
-			        		if (!SatIO.waitLock(10)) {
-			        			error("Board busy");
-			        		}
-			    			switch (parts[0]) {
-							case "i":
-							case "init":
-								expect(2);
-								String type = parts[2];
-								switch (type) {
-								case "s16":
-									boards[num(1)] = new Solenoid16(num(1));
-									break;
-								default:
-									error("unknown board type");
-								}
-								curBoard = num(1);
-								resp("init board "+num(1));
-								return true;
-							}
-			    			if (curBoard != -1 && boards[curBoard] != null && boards[curBoard].type.equals(Board.Type.Solenoid16)) {
-			    				Solenoid16 board = (Solenoid16)boards[curBoard];
-			    				switch (parts[0]) {
-			    				case "hb":
-			    				case "heartbeat":
-			    					int hb = board.heartbeat();
-			    					resp(hb);
-			    					return true;
-			    				case "f":
-			    				case "fire":
-									if (parts.length > 2)
-										board.fireSolenoidFor(byt(1), num(2));
-									else if (parts.length == 2)
-										board.fireSolenoid(byt(1));
-									else 
-										error("usage: fire <num> [fire time]");
-									resp("fired solenoid "+byt(1));
-									return true;
-			    				case "on":
-									if (parts.length == 2)
-										board.turnOnSolenoid(byt(1));
-									else 
-										error("usage: on <num>");
-									resp("solenoid "+byt(1)+" on");
-									return true;
-			    				case "off":
-									if (parts.length == 2)
-										board.turnOffSolenoid(byt(1));
-									else 
-										error("usage: off <num>");
-									resp("solenoid "+byt(1)+" off");
-									return true;
-			    				case "toggle":
-									if (parts.length == 2)
-										board.toggleSolenoid(byt(1));
-									else 
-										error("usage: toggle <num>");
-									resp("solenoid "+byt(1)+(board.state[byt(1)]? " on":" off"));
-									return true;
-								case "is":
-								case "inits":
-									switch (parts[1]) {
-										case "m":
-										case "momentary":
-											if (parts.length > 3)
-												board.initMomentary(byt(2), num(3));
-											else if (parts.length > 2)
-												board.initMomentary(byt(2));
-											else 
-												error("usage: init momentary <num> [fire time|50]");
-											resp("solenoid "+byt(2)+" = momentary");
-											break;
-										case "oo":
-										case "on-off":
-											if (parts.length == 6)
-												board.initOnOff(byt(2), num(3), byt(4), byt(5));
-											else if (parts.length == 5)
-												board.initOnOff(byt(2), num(3), byt(4));
-											else if (parts.length == 4)
-												board.initOnOff(byt(2), num(3));
-											else if (parts.length == 3)
-												board.initOnOff(byt(2));
-											else 
-												error("usage: init on-off <num> [max on time|0] [pulseOffTime|0]");
-											resp("solenoid "+byt(2)+" = on-off");
-											break;									
-										case "i":
-										case "input":
-											if (parts.length > 3)
-												board.initInput(byt(2), num(3));
-											else if (parts.length > 2)
-												board.initInput(byt(2));
-											else 
-												error("usage: init input <num> [settle time|30]");
-											break;
-										case "t":
-										case "triggered":
-											if (parts.length > 5)
-												board.initTriggered(byt(2), byt(3), num(4), num(5));
-											else if (parts.length > 4)
-												board.initTriggered(byt(2), byt(3), num(4));
-											else if (parts.length > 3)
-												board.initTriggered(byt(2), byt(3));
-											else 
-												error("usage: init triggered <num> <triggered by> [min time|0] [max time|50]");
-											break;
-										default:
-											error("unknown type '"+parts[1]+"'");
-									}
-									return true;
-								case "d":
-								case "disable":
-									board.disableSolenoid(byt(1));
-									resp("solenoid "+byt(1)+" disabled");
-									return true;
-			    				}
-			    			}
-							error("unknown command '"+parts[0]+"'");
-							return true;
-			    		} finally {
-			    			SatIO.unlock();
-			    		}
-		    		}
-		    	}).process();
+				if (cmd == null)
+					error("unknown command '"+args.name()+"'");
+				cmd.count.increment();
+				boolean success = slots.parse(this, cmd, args).run(this, slots);
 				
 				if (oldCurBoard != -2)
 					curBoard = oldCurBoard;
 				return success;
 			} catch (ZError e) {
+				failed(e);
 				return true;
 			} catch (Exception e) {
-				System.err.println("Error handling command: '" + input + "'");
+				System.err.println("Error handling command: '" + (input != null? input : frame) + "'");
 				e.printStackTrace();
 				internalError();
 				return true;
 			}
 			finally {
-				lastCommand = input;
+				if (input != null)
+					lastCommand = input;
+				if (async != null) {
+					// logged when the board's done, frameIn will have been reused by then
+					int seq = this.seq, opcode = input == null? frame.opcode : cmd.opcode, board = boardNum;
+					String text = input;
+					byte[] args = input == null? Arrays.copyOfRange(frameIn, 4, frameLen) : null;
+					async.thenAccept(status -> {
+						long latency = System.nanoTime() - start;
+						if (text == null)
+							CmdLog.get().log(connNum, seq, opcode, board, args, 0, args.length, status, latency);
+						else
+							CmdLog.get().log(connNum, seq, opcode, board, text, status, latency);
+					});
+				}
+				else if (!skipLog) {
+					long latency = System.nanoTime() - start;
+					if (input == null)
+						CmdLog.get().log(connNum, seq, frame.opcode, boardNum, frameIn, 4, frameLen-4, status, latency);
+					else
+						CmdLog.get().log(connNum, seq, cmd != null? cmd.opcode : 0, boardNum, input, status, latency);
+				}
 			}
-    	} catch (SocketException|RuntimeException e) {
+    	} catch (RuntimeException e) {
             led.clear();
-    		throw new RuntimeException(e);
-		} catch (Exception e) {
-			System.err.println("Error reading command");
-			e.printStackTrace();
-			internalError();
-			return true;
+    		throw e;
 		}
     }
     
+    final Args.Text batchText = new Args.Text();
+    final Frames.FrameArgs batchFrame = new Frames.FrameArgs();
+    final Commands.Slots batchSlots = new Commands.Slots();
+    boolean batching = false; // replies are dropped, batch collects their statuses
+    boolean triggering = false; // only failures are replied
+    
+    // runs each sub command in order, their board IO as one turn of the SPI worker, then replies with all their statuses
+    // text: batch 0: fire 3; 1: fire 4   frame: FRAME args
+    boolean batch(Args args) {
+    	@SuppressWarnings("unchecked")
+    	CompletableFuture<Integer>[] statuses = new CompletableFuture[Frames.MAX_ARGS];
+    	int n = 0;
+    	boolean open = true;
+    	batching = true;
+    	io.beginGroup();
+    	try {
+	    	if (args instanceof Frames.FrameArgs) {
+	    		Frames.FrameArgs frame = (Frames.FrameArgs)args;
+	    		for (int k=1; k<frame.count && open; k++) {
+	    			status = 400;
+	    			if (frame.types[k] == Frames.FRAME) {
+	    				try {
+	    					batchFrame.decode(frame, k);
+	    				} catch (RuntimeException e) {
+	    					statuses[n++] = CompletableFuture.completedFuture(400);
+	    					continue;
+	    				}
+	    				open = batchOne(batchFrame.board, Commands.get(batchFrame.opcode), batchFrame);
+	    			}
+	    			statuses[n++] = async != null? async : CompletableFuture.completedFuture(status);
+	    		}
+	    	}
+	    	else {
+	    		String line = args.rest(1);
+	    		for (int i=0; i<line.length() && open; ) {
+	    			int end = line.indexOf(';', i);
+	    			if (end == -1) end = line.length();
+	    			String input = line.substring(i, end).trim();
+	    			i = end+1;
+	    			if (input.isEmpty()) continue;
+	    			if (n == statuses.length)
+	    				statuses = Arrays.copyOf(statuses, n*2);
+	    			int boardNum = -1;
+	    			int colon = boardPrefix(input);
+	    			if (colon != -1) {
+	    				boardNum = Integer.parseInt(input.substring(0, colon));
+	    				input = input.substring(colon+1).trim();
+	    			}
+	    			batchText.set(input);
+	    			open = batchOne(boardNum, Commands.get(batchText.name()), batchText);
+	    			statuses[n++] = async != null? async : CompletableFuture.completedFuture(status);
+	    		}
+	    	}
+    	} finally {
+    		batching = false;
+    		io.endGroup();
+    		if (!holdLeds)
+    			led.commit(leds); // all the batch's lights on the same frame
+    	}
+    	CompletableFuture<Integer>[] subs = Arrays.copyOf(statuses, n);
+    	boolean binary = this.binary;
+    	respWhenDone(CompletableFuture.allOf(subs).thenApply(v -> {
+    		int[] s = new int[subs.length];
+    		for (int i=0; i<s.length; i++)
+    			s[i] = subs[i].join();
+    		if (binary)
+    			return s;
+    		StringBuilder str = new StringBuilder();
+    		for (int i=0; i<s.length; i++)
+    			str.append(i>0? " " : "").append(s[i]);
+    		return str;
+    	}), null);
+    	return open;
+    }
+    
+    private boolean batchOne(int boardNum, Commands.Command cmd, Args args) {
+    	int oldCurBoard = curBoard;
+    	if (boardNum >= 0)
+    		curBoard = boardNum;
+    	status = 0;
+    	async = null;
+    	try {
+    		// init waits for the SPI worker, which won't get to the batch until it's done
+    		if (cmd == null || cmd.name.equals("batch") || cmd.name.equals("binary") || cmd.name.equals("init"))
+    			error("can't batch '"+args.name()+"'");
+    		cmd.count.increment();
+    		return batchSlots.parse(this, cmd, args).run(this, batchSlots);
+    	} catch (ZError e) {
+    		failed(e);
+    		return true;
+    	} catch (Exception e) {
+    		System.err.println("Error handling batched command: '" + args + "'");
+    		e.printStackTrace();
+    		internalError();
+    		return true;
+    	} finally {
+    		curBoard = oldCurBoard;
+    	}
+    }
+    
+    // trigger thread, on a connection's trigger runner: runs a trigger the connection set, replying only if it fails
+    synchronized void fire(Triggers.Trigger t) {
+    	long start = System.nanoTime();
+    	int oldSeq = seq, oldCurBoard = curBoard;
+    	seq = t.seq;
+    	binary = replyTo.binary;
+    	curBoard = t.board >= 0? t.board : replyTo.curBoard;
+    	status = 0;
+    	async = null;
+    	triggering = true;
+    	try {
+    		t.cmd.count.increment();
+    		t.cmd.run(this, t.slots);
+    	} catch (ZError e) {
+    		failed(e);
+    	} catch (Exception e) {
+    		System.err.println("Error running trigger '" + t + "'");
+    		e.printStackTrace();
+    		internalError();
+    	} finally {
+    		triggering = false;
+    		seq = oldSeq;
+    		curBoard = oldCurBoard;
+    		if (async != null)
+    			async.thenAccept(status -> CmdLog.get().log(connNum, t.seq, t.cmd.opcode, t.board, t.text.toString(), status, System.nanoTime()-start));
+    		else
+    			CmdLog.get().log(connNum, t.seq, t.cmd.opcode, t.board, t.text.toString(), status, System.nanoTime()-start);
+    	}
+    }
+    
+    // index of the ':' in a leading "<board>:", or -1
+    static int boardPrefix(String input) {
+    	int i = 0;
+    	while (i < input.length() && Character.isDigit(input.charAt(i))) i++;
+    	return i > 0 && i < input.length() && input.charAt(i) == ':'? i : -1;
+    }
+    
 
     public static void main( String[] args) throws Exception
     {
@@ -516,21 +635,8 @@ public class JServer extends Thread
 //			e.printStackTrace();
 //		}
 //    	sound.playSound("green grass slow with start", 0, .5f, false);
-        ServerSocket socket = null;
-        try {
-            socket = new ServerSocket(2908);
-            System.out.println( "Listening on port 2908..." );
-            while(true) {
-                Socket connection = socket.accept();
-                System.out.println("New connection from " + connection.getInetAddress());
-                new JServer(connection, args.length==0 || !args[0].equals("sim")); 
-            }
-        } catch(Exception e) {
-          e.printStackTrace();
-        } finally {
-        	System.out.println("No longer listening");
-            socket.close();
-            System.exit(0);
-        }
+        ConnectionEngine engine = new ConnectionEngine(2908, Integer.getInteger("zpin.workers", 2), args.length==0 || !args[0].equals("sim"));
+        System.out.println( "Listening on port 2908..." );
+        engine.run();
     }
 }
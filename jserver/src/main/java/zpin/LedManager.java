@@ -1,5 +1,11 @@
 package zpin;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
 import com.github.mbelling.ws281x.LedStripType;
 import com.github.mbelling.ws281x.Ws281xLedStrip;
 
@@ -32,9 +38,160 @@ public class LedManager extends Thread {
 			this.b = b;
 			this.mode = LedMode.Solid;
 		}
+		
+		/**
+		 * The rest of a state packed into one int, for the bulk led commands:
+		 * bits 0-1 mode (0 solid, 1 flashing, 2 pulsing), 2-9 duty cycle in 255ths,
+		 * 10-17 phase in 128ths, 18-30 freq in 64ths of a Hz.  Solid is just 0.
+		 */
+		static LedState unpack(int rgb, int word) {
+			LedState s = new LedState(rgb >> 16 & 0xFF, rgb >> 8 & 0xFF, rgb & 0xFF);
+			s.mode = LedMode.values()[Math.min(word & 3, 2)];
+			s.dutyCycle = (word >> 2 & 0xFF) / 255.;
+			s.phase = (word >> 10 & 0xFF) / 128.;
+			s.freq = (word >> 18 & 0x1FFF) / 64.;
+			return s;
+		}
+		
+		static int pack(LedMode mode, double freq, double phase, double dutyCycle) {
+			return mode.ordinal()
+					| (int)Math.round(Math.min(Math.max(dutyCycle, 0), 1)*255) << 2
+					| (int)Math.round(Math.min(Math.max(phase, 0), 255/128.)*128) << 10
+					| (int)Math.round(Math.min(Math.max(freq, 0), 0x1FFF/64.)*64) << 18;
+		}
+	}
+	
+	/**
+	 * Colors at times, faded between, e.g. "0 #000000 100 #ff0000 400 #000000" to flash a lamp
+	 * red and fade it out.  Two keys at the same time jump.  Each led of the group it's played on
+	 * runs spread ms behind the one before it, for chases and sweeps.
+	 */
+	static class Seq {
+		final int length, spread; // ms
+		final int[] times, colors; // times ascending, none past length
+		
+		Seq(int length, int spread, int[] times, int[] colors) {
+			this.length = length;
+			this.spread = spread;
+			this.times = times;
+			this.colors = colors;
+		}
+		
+		// the color t ms in
+		int at(double t) {
+			int k = 0;
+			while (k < times.length && times[k] <= t) k++;
+			if (k == 0) return colors[0];
+			if (k == times.length) return colors[k-1];
+			double f = (t-times[k-1]) / (times[k]-times[k-1]);
+			int a = colors[k-1], b = colors[k];
+			int r = a >> 16 & 0xFF, g = a >> 8 & 0xFF, bl = a & 0xFF;
+			return (r + (int)(((b >> 16 & 0xFF)-r)*f)) << 16
+					| (g + (int)(((b >> 8 & 0xFF)-g)*f)) << 8
+					| (bl + (int)(((b & 0xFF)-bl)*f));
+		}
+	}
+	
+	// a sequence playing on a group, drawn over the leds' states
+	static class Anim {
+		final String group;
+		final int[] leds;
+		final Seq seq;
+		final int loops; // 0 forever
+		double start = Double.NaN; // set when it's committed
+		
+		Anim(String group, int[] leds, Seq seq, int loops) {
+			this.group = group;
+			this.leds = leds;
+			this.seq = seq;
+			this.loops = loops;
+		}
+		
+		boolean done(double now) {
+			return loops > 0 && now-start >= seq.length*loops + seq.spread*(leds.length-1);
+		}
+		
+		void draw(double now, int[] rgb) {
+			for (int j=0; j<leds.length; j++) {
+				double t = now - start - seq.spread*j;
+				if (loops > 0 && (t < 0 || t >= seq.length*loops))
+					continue; // not started or finished, its state shows
+				t %= seq.length;
+				if (t < 0) t += seq.length;
+				rgb[leds[j]] = seq.at(t);
+			}
+		}
 	}
 	
-	public LedState[][] leds = new LedState[150][];
+	final ConcurrentHashMap<String, int[]> groups = new ConcurrentHashMap<>();
+	final ConcurrentHashMap<String, Seq> seqs = new ConcurrentHashMap<>();
+	
+	// everything the renderer draws, replaced whole by each commit
+	static class Commit {
+		final LedState[][] leds;
+		final Anim[] anims;
+		
+		Commit(LedState[][] leds, Anim[] anims) {
+			this.leds = leds;
+			this.anims = anims;
+		}
+	}
+	
+	/**
+	 * One connection's changes since its last commit, so another connection committing never
+	 * publishes them half done.
+	 */
+	static class Stage {
+		final LedState[][] leds = new LedState[150][];
+		final boolean[] set = new boolean[150];
+		final ArrayList<Anim> anims = new ArrayList<>(); // to play, or to stop if seq is null (group null for all)
+		boolean dirty = false;
+	}
+	
+	// what's been committed, guarded by this; each commit publishes a copy for the next frame
+	private final LedState[][] current = new LedState[150][];
+	private final ArrayList<Anim> anims = new ArrayList<>();
+	volatile Commit live = new Commit(new LedState[150][], new Anim[0]);
+	
+	void set(Stage s, int led, LedState[] states) {
+		s.leds[led] = states;
+		s.set[led] = true;
+		s.dirty = true;
+	}
+	
+	void play(Stage s, String group, int[] leds, Seq seq, int loops) {
+		s.anims.add(new Anim(group, leds, seq, loops));
+		s.dirty = true;
+	}
+	
+	// stops the anims on group, or every anim if null
+	void stop(Stage s, String group) {
+		s.anims.add(new Anim(group, null, null, 0));
+		s.dirty = true;
+	}
+	
+	synchronized void commit(Stage s) {
+		if (!s.dirty) return;
+		for (int i=0; i<current.length; i++)
+			if (s.set[i]) {
+				current[i] = s.leds[i];
+				s.leds[i] = null;
+				s.set[i] = false;
+			}
+		double now = SwitchMatrix.ms();
+		anims.removeIf(a -> a.done(now));
+		for (Anim a : s.anims) {
+			if (a.seq == null)
+				anims.removeIf(b -> a.group == null || b.group.equals(a.group));
+			else {
+				a.start = now; // all of a commit's anims start together
+				anims.add(a);
+			}
+		}
+		s.anims.clear();
+		s.dirty = false;
+		live = new Commit(current.clone(), anims.toArray(new Anim[anims.size()]));
+	}
 	
 	public void init() {
 		if (this.strip != null) return;
@@ -43,65 +200,133 @@ public class LedManager extends Thread {
 		strip.setPixel(109, 0, 255,0);
 		strip.render();
 		System.out.println("LEDs initialized");;
-		this.leds[109] = new LedState[] { new LedState(255, 0, 0) };
+		clear();
 		this.start();
 	}
 	
-	public void clear() {
-		for (int i=0; i<this.leds.length; i++)
-			this.leds[i] = null;
-		this.leds[109] = new LedState[] { new LedState(255, 0, 0) };
+	// drops everything committed, not what connections have staged
+	public synchronized void clear() {
+		for (int i=0; i<current.length; i++)
+			current[i] = null;
+		anims.clear();
+		current[109] = new LedState[] { new LedState(255, 0, 0) };
+		live = new Commit(current.clone(), new Anim[0]);
+	}
+	
+	final int[] pixels = new int[150];
+	final int[] shown = new int[150]; // what the strip has, -1 if unknown
+	final int[] changed = new int[150];
+	{ Arrays.fill(shown, -1); }
+	
+	final AtomicLong frames = new AtomicLong(), skipped = new AtomicLong(), pushed = new AtomicLong();
+	final AtomicLong dropped = new AtomicLong(); // deadlines missed entirely
+	final AtomicLong overruns = new AtomicLong(); // frames that took longer than a period
+	final Histogram late = new Histogram(); // us woken after the deadline
+	final Histogram frameTime = new Histogram(); // us to draw and push a frame
+	
+	final double fps = Double.parseDouble(System.getProperty("zpin.led.fps", "30"));
+	final long period = (long)(1000000000/fps); // ns
+	
+	// the deadline after the one just run.  Late by under a period it's run straight away to catch up,
+	// any more and the missed ones are dropped, keeping to the same grid
+	long next(long deadline, long now) {
+		deadline += period;
+		if (now-deadline >= period) {
+			long missed = (now-deadline)/period;
+			dropped.addAndGet(missed);
+			deadline += missed*period;
+		}
+		return deadline;
+	}
+	
+	// fills changed with the leds that differ from what's shown and marks them shown, returning how many
+	int diff(int[] rgb) {
+		int n = 0;
+		for (int i=0; i<rgb.length; i++)
+			if (rgb[i] != shown[i]) {
+				shown[i] = rgb[i];
+				changed[n++] = i;
+			}
+		frames.incrementAndGet();
+		if (n == 0)
+			skipped.incrementAndGet();
+		pushed.addAndGet(n);
+		return n;
+	}
+	
+	String stats() {
+		return "frames="+frames.get()+" skipped="+skipped.get()+" pixels="+pushed.get()
+			+" dropped="+dropped.get()+" overruns="+overruns.get()+" late(us) "+late+" frame(us) "+frameTime;
+	}
+	
+	// each led's 0xRRGGBB at now
+	void frame(double now, int[] rgb) {
+		Commit live = this.live; // a frame only ever sees one commit
+		LedState[][] leds = live.leds;
+		for (int i=0; i<leds.length; i++) {
+			LedState[] states = leds[i];
+			if (states==null || states.length==0)
+				rgb[i] = 0;
+			else {
+				int j = ((int)now)/1000%states.length;
+				LedState s = states[j];
+				double t = now / (1000.f/s.freq);
+				t = t - Math.floor(t);
+				t += s.phase*.5;
+				while (t > 1) t -= 1;
+				switch (s.mode) {
+				case Solid:
+					rgb[i] = s.r << 16 | s.g << 8 | s.b;
+					break;
+				case Flashing:
+					if (t >= 0.5-s.dutyCycle/2 && t < 0.5+s.dutyCycle/2)
+						rgb[i] = s.r << 16 | s.g << 8 | s.b;
+					else
+						rgb[i] = 0;
+					break;
+				case Pulsing:
+					t *= 2;
+					if (t < 1) {
+//						t = -Math.sin(Math.PI*.5*t+Math.PI);
+						t = Math.pow(t, 3);
+						rgb[i] = (int)(s.r*t) << 16 | (int)(s.g*t) << 8 | (int)(s.b*t);
+					}
+					else {
+						t = 2-t;
+						rgb[i] = (int)(s.r*t) << 16 | (int)(s.g*t) << 8 | (int)(s.b*t);
+					}
+					break;
+				}
+			}
+		}
+		for (Anim a : live.anims)
+			a.draw(now, rgb);
 	}
 	
 	@Override
     public void run() {
+		long deadline = System.nanoTime();
 		while(true) {
-			double now = SwitchMatrix.ms();
-			for (int i=0; i<this.leds.length; i++) {
-				LedState[] states = this.leds[i];
-				if (states==null || states.length==0)
-					strip.setPixel(i, 0, 0, 0);
-				else {
-					int j = ((int)now)/1000%states.length;
-					LedState s = states[j];
-					double t = now / (1000.f/s.freq);
-					t = t - Math.floor(t);
-					t += s.phase*.5;
-					while (t > 1) t -= 1;
-					switch (s.mode) {
-					case Solid:
-						strip.setPixel(i, s.r, s.g, s.b);
-						break;
-					case Flashing:
-						if (t >= 0.5-s.dutyCycle/2 && t < 0.5+s.dutyCycle/2)
-							strip.setPixel(i, s.r, s.g, s.b);
-						else
-							strip.setPixel(i, 0, 0, 0);
-						break;
-					case Pulsing:
-						t *= 2;
-						if (t < 1) {
-//							t = -Math.sin(Math.PI*.5*t+Math.PI);
-							t = Math.pow(t, 3);
-							strip.setPixel(i, (int)(s.r*t), (int)(s.g*t), (int)(s.b*t));
-						}
-						else {
-							t = 2-t;
-							strip.setPixel(i, (int)(s.r*t), (int)(s.g*t), (int)(s.b*t));
-						}
-						break;
-					}
-				}
+			long wait;
+			while ((wait = deadline-System.nanoTime()) > 0)
+				LockSupport.parkNanos(wait);
+			long start = System.nanoTime();
+			late.record((start-deadline)/1000);
+			// drawn for the deadline, so motion stays even when woken late
+			double now = SwitchMatrix.ms() - (start-deadline)/1000000.;
+			frame(now, pixels);
+			int n = diff(pixels);
+			for (int j=0; j<n; j++) {
+				int i = changed[j];
+				strip.setPixel(i, pixels[i] >> 16 & 0xFF, pixels[i] >> 8 & 0xFF, pixels[i] & 0xFF);
 			}
-			strip.render();
-			long took = (long) (SwitchMatrix.ms()-now);
-			if (took < 33)
-				try {
-					Thread.sleep(33-took);
-				} catch (InterruptedException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
-				}
+			if (n > 0)
+				strip.render();
+			long end = System.nanoTime();
+			frameTime.record((end-start)/1000);
+			if (end-start > period)
+				overruns.incrementAndGet();
+			deadline = next(deadline, end);
 		}
 	}
 
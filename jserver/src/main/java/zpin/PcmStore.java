@@ -0,0 +1,198 @@
+package zpin;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Every wav already in Sounds.targetFormat, packed one after another into media/pcm.store and
+ * mapped into memory, so nothing's decoded at startup or on play.  media/pcm.idx lists each file's
+ * modified time, size and where its samples are; any file that's new or changed is converted
+ * again, in parallel, and the store is rewritten.
+ */
+public class PcmStore {
+	static final String VERSION = "pcm 1";
+
+	static class Entry {
+		final String name;
+		final long modified, size; // of the source file
+		final int offset, length; // samples
+		PcmStore store;
+
+		Entry(String name, long modified, long size, int offset, int length) {
+			this.name = name;
+			this.modified = modified;
+			this.size = size;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		boolean matches(File file) {
+			return file.lastModified() == modified && file.length() == size;
+		}
+
+		// copies up to max samples from from, returning how many
+		int read(int from, short[] dst, int off, int max) {
+			int n = Math.max(0, Math.min(max, length-from));
+			ShortBuffer pcm = store.pcm.duplicate();
+			pcm.position(offset+from);
+			pcm.get(dst, off, n);
+			return n;
+		}
+
+		short[] read() {
+			short[] data = new short[length];
+			read(0, data, 0, length);
+			return data;
+		}
+	}
+
+	final Map<String, Entry> entries = new HashMap<>();
+	private ShortBuffer pcm;
+
+	Entry get(String name) {
+		return entries.get(name);
+	}
+
+	// maps dir's store, first bringing it up to date with wavs.  null if it can't be used
+	static PcmStore open(File dir, File[] wavs) {
+		File storeFile = new File(dir, "pcm.store");
+		File indexFile = new File(dir, "pcm.idx");
+		try {
+			PcmStore old = null;
+			if (storeFile.exists() && indexFile.exists()) {
+				old = new PcmStore();
+				if (!old.readIndex(indexFile) || !old.map(storeFile))
+					old = null;
+			}
+			boolean current = old != null && old.entries.size() == wavs.length;
+			for (File wav : wavs) {
+				Entry e = old != null? old.get(wav.getName()) : null;
+				if (e == null || !e.matches(wav))
+					current = false;
+			}
+			if (current)
+				return old;
+
+			long start = System.currentTimeMillis();
+			indexFile.delete(); // no index until the new store's in place
+			PcmStore store = build(dir, wavs, old);
+			store.writeIndex(indexFile);
+			store.map(storeFile);
+			System.out.println("rebuilt "+storeFile+" in "+(System.currentTimeMillis()-start)+"ms");
+			return store;
+		} catch (Exception e) {
+			System.out.println("ERROR building sound store, decoding files instead");
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	// writes a new store, copying what's unchanged from old and converting the rest
+	private static PcmStore build(File dir, File[] wavs, PcmStore old) throws Exception {
+		PcmStore store = new PcmStore();
+		File tmp = new File(dir, "pcm.store.tmp");
+		int threads = Runtime.getRuntime().availableProcessors();
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		// converted in parallel but written in order, at most a couple per thread held at once
+		ArrayDeque<Future<short[]>> pending = new ArrayDeque<>();
+		ArrayDeque<File> pendingFiles = new ArrayDeque<>();
+		int converted = 0;
+		long offset = 0;
+		try (FileChannel out = new RandomAccessFile(tmp, "rw").getChannel()) {
+			out.truncate(0);
+			for (int i=0; i<=wavs.length; i++) {
+				while (!pending.isEmpty() && (i == wavs.length || pending.size() >= threads*2)) {
+					File file = pendingFiles.poll();
+					short[] data = pending.poll().get();
+					if (data == null)
+						data = old.get(file.getName()).read();
+					offset = store.write(out, file, data, offset);
+				}
+				if (i == wavs.length) break;
+				File file = wavs[i];
+				Entry e = old != null? old.get(file.getName()) : null;
+				if (e != null && e.matches(file))
+					pending.add(CompletableFuture.completedFuture(null)); // copied over when it's written
+				else {
+					pending.add(pool.submit(() -> WavCache.decode(file)));
+					converted++;
+				}
+				pendingFiles.add(file);
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+		Files.move(tmp.toPath(), new File(dir, "pcm.store").toPath(), StandardCopyOption.REPLACE_EXISTING);
+		System.out.println("converted "+converted+" of "+wavs.length+" sound files on "+threads+" threads");
+		return store;
+	}
+
+	private long write(FileChannel out, File file, short[] data, long offset) throws IOException {
+		if (offset+data.length > Integer.MAX_VALUE/2)
+			throw new IOException("sound store over 2GB");
+		ByteBuffer bytes = ByteBuffer.allocate(data.length*2);
+		bytes.asShortBuffer().put(data);
+		while (bytes.hasRemaining())
+			out.write(bytes);
+		entries.put(file.getName(), new Entry(file.getName(), file.lastModified(), file.length(), (int)offset, data.length));
+		return offset+data.length;
+	}
+
+	private boolean map(File storeFile) throws IOException {
+		try (FileChannel in = new RandomAccessFile(storeFile, "r").getChannel()) {
+			long end = 0;
+			for (Entry e : entries.values())
+				end = Math.max(end, (e.offset+(long)e.length)*2);
+			if (in.size() < end)
+				return false; // cut short
+			pcm = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size()).asShortBuffer();
+		}
+		for (Entry e : entries.values())
+			e.store = this;
+		return true;
+	}
+
+	private boolean readIndex(File indexFile) throws IOException {
+		try (BufferedReader in = new BufferedReader(new FileReader(indexFile))) {
+			if (!VERSION.equals(in.readLine()))
+				return false;
+			String line;
+			while ((line = in.readLine()) != null) {
+				String[] parts = line.split("\t");
+				if (parts.length != 5) return false;
+				entries.put(parts[0], new Entry(parts[0], Long.parseLong(parts[1]), Long.parseLong(parts[2]),
+						Integer.parseInt(parts[3]), Integer.parseInt(parts[4])));
+			}
+		} catch (NumberFormatException e) {
+			return false;
+		}
+		return true;
+	}
+
+	private void writeIndex(File indexFile) throws IOException {
+		File tmp = new File(indexFile.getPath()+".tmp");
+		try (BufferedWriter out = new BufferedWriter(new FileWriter(tmp))) {
+			out.write(VERSION+"\n");
+			for (Entry e : entries.values())
+				out.write(e.name+"\t"+e.modified+"\t"+e.size+"\t"+e.offset+"\t"+e.length+"\n");
+		}
+		Files.move(tmp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+}
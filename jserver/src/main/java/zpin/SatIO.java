@@ -2,10 +2,14 @@ package zpin;
 import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Date;
-import java.util.Scanner;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 
 import com.pi4j.io.gpio.GpioController;
@@ -18,44 +22,85 @@ import com.pi4j.io.spi.SpiChannel;
 import com.pi4j.io.spi.SpiDevice;
 import com.pi4j.io.spi.SpiFactory;
 
+/**
+ * The SPI bus to the satellite boards.
+ *
+ * A command is sent as S len payload checksum E.  The board then clocks out filler until it's
+ * ready, then R len [payload checksum], or L wantedLength / C on a bad length or checksum.
+ * Until it has finished replying, it ignores whatever is clocked in.
+ */
 public class SatIO {
-	GpioController gpio = GpioFactory.getInstance();
-	
-	GpioPinDigitalOutput[] selects = new GpioPinDigitalOutput[4];
-	SpiDevice spi;
+	// the bus and the board selects
+	interface Transport {
+		void select(int board); // -1 = none
+		byte[] transfer(byte[] data) throws IOException; // full duplex, returns what was clocked in
+		int maxTransfer();
+	}
+
+	static class Pi4j implements Transport {
+		GpioController gpio = GpioFactory.getInstance();
 	
-	private SatIO() {
-		if (SatIO.instance != null) throw new RuntimeException("SatIO already initialized!");
-		
-		Pin[] ss = {
-			RaspiPin.GPIO_09,
-			RaspiPin.GPIO_07,
-			RaspiPin.GPIO_21,
-			RaspiPin.GPIO_22,
-//			RaspiPin.GPIO_11,
-//			RaspiPin.GPIO_10,
-//			RaspiPin.GPIO_26,
-//			RaspiPin.GPIO_23,
-		};
-		for (int i = 0; i<ss.length; i++) {
-			selects[i] = gpio.provisionDigitalOutputPin(ss[i], PinState.HIGH);
-		}		
-		
-		if ("Simulated".equals(System.getenv("PI4J_PLATFORM"))) return;
-		try {
-			spi = SpiFactory.getInstance(SpiChannel.CS0, 5000000); // 25000000
-		} catch (IOException e) {
-			throw new RuntimeException(e);
+		GpioPinDigitalOutput[] selects = new GpioPinDigitalOutput[4];
+		SpiDevice spi;
+
+		Pi4j() {
+			Pin[] ss = {
+				RaspiPin.GPIO_09,
+				RaspiPin.GPIO_07,
+				RaspiPin.GPIO_21,
+				RaspiPin.GPIO_22,
+//				RaspiPin.GPIO_11,
+//				RaspiPin.GPIO_10,
+//				RaspiPin.GPIO_26,
+//				RaspiPin.GPIO_23,
+			};
+			for (int i = 0; i<ss.length; i++) {
+				selects[i] = gpio.provisionDigitalOutputPin(ss[i], PinState.HIGH);
+			}
+
+			try {
+				spi = SpiFactory.getInstance(SpiChannel.CS0, 5000000); // 25000000
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		public void select(int n) {
+			for (int i=0; i<selects.length; i++)
+				selects[i].setState(n != i);
+		}
+
+		public byte[] transfer(byte[] data) throws IOException {
+			return spi.write(data);
+		}
+
+		public int maxTransfer() {
+			return SpiDevice.MAX_SUPPORTED_BYTES;
 		}
 	}
+
+	static final boolean simulated = "Simulated".equals(System.getenv("PI4J_PLATFORM"));
+
+	final Transport bus;
+
+	SatIO(Transport bus) {
+		this.bus = bus;
+	}
 	
 	private static SatIO instance = null;
 	public static SatIO get() {
 		if (instance == null) {
-			instance = new SatIO();
+			instance = new SatIO(simulated? SimBus.fromConfig() : new Pi4j());
 		}
 		return instance;
 	}
+
+	// use bus instead of the Pi's, before anything else calls get()
+	static SatIO init(Transport bus) {
+		if (instance != null) throw new RuntimeException("SatIO already initialized!");
+		instance = new SatIO(bus);
+		return instance;
+	}
 	
 	static private ReentrantLock lock = new ReentrantLock();
 	
@@ -74,14 +119,13 @@ public class SatIO {
 	}
 	
 	static void unlock() {
-		if (lock.isLocked())
+		if (lock.isHeldByCurrentThread())
 			lock.unlock();
 	}
 
 	public void select(int n) {
 		checkLock();
-		for (int i=0; i<selects.length; i++)
-			selects[i].setState(n != i);
+		bus.select(n);
 	}
 	
 	public Closeable selectWith(int n) {
@@ -102,26 +146,20 @@ public class SatIO {
 			this.select(-1);
 		}
 	}
-	
-	public void spiWrite(byte ...data) {
+
+	public byte[] spiWrite(byte ...data) {
 		checkLock();
 
 //		System.out.println("write bytes "+Arrays.toString(data));
 		try {
-			spi.write(data);
+			return bus.transfer(data);
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
 	}
 	public byte[] spiRead(int bytes) {
-		checkLock();
-		byte[] data;
-		try {
-			data = spi.write(new byte[bytes]);
-//			System.out.println("read bytes "+Arrays.toString(data));
-		} catch (IOException e) {
-			throw new RuntimeException(e);
-		}
+		byte[] data = spiWrite(new byte[bytes]);
+//		System.out.println("read bytes "+Arrays.toString(data));
 		return data;
 	}
 	
@@ -148,62 +186,195 @@ public class SatIO {
 		return sendCommand(int2byte(ints));
 	}
 	public byte[] sendCommand(byte ...bytes) throws Error {
-		checkLock();
-		
-		if ("Simulated".equals(System.getenv("PI4J_PLATFORM"))) {
-			System.out.println("send command "+Arrays.toString(bytes));
-			System.out.print("> ");
-			Scanner s = new Scanner(System.in);
-			String[] ss = s.nextLine().split(" ");
-			byte[] ret = new byte[ss.length];
-			for (int i=0; i<ss.length; i++)
-				ret[i] = Byte.parseByte(ss[i]);
-			s.close();
-			return ret;
+		return sendCommandExpect(-1, bytes);
+	}
+
+	public byte[] sendCommandExpect(int expectedLength, int ...bytes) throws Error {
+		return sendCommandExpect(expectedLength, int2byte(bytes));
+	}
+	public byte[] sendCommandExpect(int expectedLength, byte ...bytes) throws Error {
+		return pipeline().add(expectedLength, bytes).send()[0];
+	}
+
+	// filler bytes clocked after each frame of a pipeline for the board to get ready in, grows when a board needs longer.
+	// Only changed by whoever holds the IO lock, read by spi-stats from any thread
+	static volatile int window = Integer.getInteger("zpin.spi.window", 32);
+	static final int MAX_WINDOW = 1024;
+	static volatile int windowMisses = 0; // transfers a board wasn't ready in time for
+
+	static String stats() {
+		return "window="+window+" windowMisses="+windowMisses;
+	}
+
+	/**
+	 * Commands for the selected board, sent back to back in as few transfers as possible
+	 * with room after each for its reply, instead of a write and several reads per command.
+	 * Any the board was too busy to hear are sent again after the rest of their transfer, so
+	 * only use it for commands that can run in any order, e.g. one per solenoid.
+	 */
+	public class Pipeline {
+		private final List<byte[]> payloads = new ArrayList<>();
+		private final List<Integer> expected = new ArrayList<>();
+
+		// expectedLength -1 accepts any length
+		public Pipeline add(int expectedLength, byte ...payload) {
+			payloads.add(payload);
+			expected.add(expectedLength);
+			return this;
 		}
-		
-		byte[] out = new byte[bytes.length + 4];
-		out[0] = 'S';
-		out[1] = (byte)bytes.length;
-		System.arraycopy(bytes, 0, out, 2, bytes.length);
-		out[bytes.length + 2] = checkSum(bytes);
-		out[bytes.length + 3] = 'E';
-		long start = System.nanoTime();
-		spiWrite(out);
-		long end = System.nanoTime();
-		System.out.println("Send command "+bytes[0]+ " in "+(((float)(end-start))/1000000.0)+" ms");
-//		System.out.println("begin wait for ready signal");
+		public Pipeline add(int expectedLength, int ...payload) {
+			return add(expectedLength, int2byte(payload));
+		}
+		public Pipeline add(int expectedLength, CommandBuilder cmd) {
+			return add(expectedLength, cmd.stream.toByteArray());
+		}
+
+		public int size() {
+			return payloads.size();
+		}
+
+		// returns each command's reply, or throws for the first that failed
+		public byte[][] send() throws Error {
+			checkLock();
+			byte[][] replies = new byte[payloads.size()][];
+			long start = System.nanoTime();
+			int transfers = 0;
+			List<Integer> todo = new ArrayList<>();
+			for (int f=0; f<replies.length; f++)
+				todo.add(f);
+			for (; !todo.isEmpty(); transfers++)
+				todo = transfer(todo, replies);
+			long end = System.nanoTime();
+			if (replies.length == 1)
+				System.out.println("Send command "+payloads.get(0)[0]+" in "+(((float)(end-start))/1000000.0)+" ms");
+			else
+				System.out.println("Send "+replies.length+" commands in "+transfers+" transfers in "+(((float)(end-start))/1000000.0)+" ms");
+			return replies;
+		}
+
+		private int room(int f, int w) {
+			return payloads.get(f).length + 4 + w + 3 + Math.max(expected.get(f), 0);
+		}
+
+		// sends as many of todo as fit in one transfer, returns what's left: any the board
+		// ignored because it was still busy, then any that didn't fit
+		private List<Integer> transfer(List<Integer> todo, byte[][] replies) throws Error {
+			int w = window;
+			int count = 0, len = 0;
+			while (count < todo.size() && (count == 0 || len + room(todo.get(count), w) <= bus.maxTransfer()))
+				len += room(todo.get(count++), w);
+			byte[] out = new byte[len];
+			int[] starts = new int[count];
+			int pos = 0;
+			for (int k=0; k<count; k++) {
+				byte[] bytes = payloads.get(todo.get(k));
+				starts[k] = pos;
+				out[pos++] = 'S';
+				out[pos++] = (byte)bytes.length;
+				System.arraycopy(bytes, 0, out, pos, bytes.length);
+				pos += bytes.length;
+				out[pos++] = checkSum(bytes);
+				out[pos++] = 'E';
+				pos = starts[k] + room(todo.get(k), w);
+			}
+			Reply in = new Reply(spiWrite(out));
+
+			List<Integer> again = new ArrayList<>();
+			boolean late = false;
+			int listening = 0; // the board ignored everything clocked in before this
+			for (int k=0; k<count; k++) {
+				int f = todo.get(k);
+				if (starts[k] < listening) {
+					again.add(f); // it was still replying to an earlier one
+					continue;
+				}
+				int p = starts[k] + payloads.get(f).length + 4;
+				int ready = p + w + 1;
+				while (p < in.length() && in.at(p) != 'R') {
+					if (in.at(p) == 'L')
+						throw new Error("sent wrong length command ("+payloads.get(f).length+"), board wanted "+in.at(p+1));
+					if (in.at(p) == 'C')
+						throw new Error("checksum fail from board");
+					p++;
+				}
+				late |= p >= ready;
+				if (p >= in.length()) {
+					// still not ready, wait for it like a lone command
+					replies[f] = check(f, awaitReply(payloads.get(f).length));
+					listening = Integer.MAX_VALUE;
+					continue;
+				}
+				int n = in.at(p+1);
+				byte[] reply = new byte[n];
+				listening = p+2;
+				if (n > 0) {
+					for (int i=0; i<n; i++)
+						reply[i] = (byte)in.at(p+2+i);
+					byte sum = checkSum(reply);
+					byte inputSum = (byte)in.at(p+2+n);
+					if (sum != inputSum)
+						throw new Error("checksum fail, input "+inputSum+" != "+sum+" for bytes "+Arrays.toString(reply));
+					listening += n+1;
+				}
+				replies[f] = check(f, reply);
+			}
+			if (late) {
+				windowMisses++;
+				if (window < MAX_WINDOW) window *= 2;
+			}
+			again.addAll(todo.subList(count, todo.size()));
+			return again;
+		}
+
+		private byte[] check(int f, byte[] reply) throws Error {
+			if (expected.get(f) >= 0 && reply.length != expected.get(f))
+				throw new Error("got wrong message length back (length "+reply.length+")");
+			return reply;
+		}
+	}
+
+	// bytes clocked in by a transfer, reading on from the bus if asked for more
+	private class Reply {
+		byte[] bytes;
+
+		Reply(byte[] bytes) {
+			this.bytes = bytes;
+		}
+
+		int length() {
+			return bytes.length;
+		}
+
+		int at(int i) {
+			if (i >= bytes.length) {
+				byte[] more = spiRead(i+1-bytes.length);
+				int old = bytes.length;
+				bytes = Arrays.copyOf(bytes, i+1);
+				System.arraycopy(more, 0, bytes, old, more.length);
+			}
+			return bytes[i] & 0xFF;
+		}
+	}
+
+	// polls for the reply to a command that's already been clocked out
+	private byte[] awaitReply(int length) throws Error {
 		byte ready = 0;
-		//clk.low();
-		Date waitStart = new Date();
+		long waitStart = System.nanoTime();
 		while ((ready&0xFF) != 'R') {
-//			System.out.print("w");
-//			clk.high();
-//			int in = miso.isState(PinState.HIGH)? 1:0;
-//			ready = (byte) ((ready<<1) | in);
-//			System.out.print(" "+in);
-//			clk.low();
-			try {
-				ready = spi.write(new byte[1])[0];
-			} catch (IOException e) {
-				throw new RuntimeException(e);
-			}
+			ready = spiRead(1)[0];
 //			System.out.print("r "+Integer.toBinaryString((ready&0xFF))+".  ");
 			if ((ready&0xFF) == 'L') {
-				throw new Error("sent wrong length command ("+bytes.length+"), board wanted "+spiRead(1)[0]);
+				throw new Error("sent wrong length command ("+length+"), board wanted "+spiRead(1)[0]);
 			}
 			if ((ready&0xFF) == 'C') {
 				throw new Error("checksum fail from board");
 			}
-			if (new Date().getTime() - waitStart.getTime() > 200)
+			if (System.nanoTime() - waitStart > 200000000L)
 				throw new Error("timeout waiting for board");
 		}
-//		System.out.println("\ngot ready signal");
 		byte numInputBytes = spiRead(1)[0];
-//		System.out.println("resp length: "+numInputBytes);
 		if (numInputBytes > 0) {
 			byte[] input = spiRead(numInputBytes+1);
-//			System.out.println("resp: "+Arrays.toString(input));
 			byte[] in = Arrays.copyOf(input, numInputBytes);
 			byte sum = checkSum(in);
 			byte inputSum = input[numInputBytes];
@@ -214,14 +385,117 @@ public class SatIO {
 		return new byte[0];
 	}
 
-	public byte[] sendCommandExpect(int expectedLength, int ...bytes) throws Error {
-		return sendCommandExpect(expectedLength, int2byte(bytes));
+	public Pipeline pipeline() {
+		return new Pipeline();
 	}
-	public byte[] sendCommandExpect(int expectedLength, byte ...bytes) throws Error {
-		byte[] output = sendCommand(bytes);
-		if (output.length != expectedLength)
-			throw new Error("got wrong message length back (length "+output.length+")");
-		return output;
+
+	// request priorities, most urgent first
+	static final int TRIGGER = 0;
+	static final int COMMAND = 1;
+	static final int CONFIG = 2;
+	static final int HEARTBEAT = 3;
+
+	private class Request<T> implements Comparable<Request<?>> {
+		final int priority;
+		final long order = submitted.getAndIncrement(); // first come first served within a priority
+		final Callable<T> work;
+		final CompletableFuture<T> done = new CompletableFuture<>();
+
+		Request(int priority, Callable<T> work) {
+			this.priority = priority;
+			this.work = work;
+		}
+
+		public int compareTo(Request<?> o) {
+			if (priority != o.priority)
+				return priority < o.priority? -1 : 1;
+			return Long.compare(order, o.order);
+		}
+
+		void run() {
+			try {
+				done.complete(work.call());
+			} catch (Throwable e) {
+				done.completeExceptionally(e);
+			}
+		}
+	}
+
+	private final AtomicLong submitted = new AtomicLong();
+	private final PriorityBlockingQueue<Request<?>> requests = new PriorityBlockingQueue<>();
+	private final ThreadLocal<List<Request<?>>> group = new ThreadLocal<>();
+	private Thread worker = null;
+
+	/**
+	 * Queues work for the SPI worker thread, which owns the bus: it runs one request at a time
+	 * with the bus locked, most urgent first.  Never wait on the result from inside a group.
+	 */
+	public <T> CompletableFuture<T> submit(int priority, Callable<T> work) {
+		Request<T> r = new Request<>(priority, work);
+		List<Request<?>> g = group.get();
+		if (g != null)
+			g.add(r);
+		else
+			enqueue(r);
+		return r.done;
+	}
+
+	// sends one command to a board
+	public CompletableFuture<byte[]> submit(int board, int priority, int expectedLength, byte ...payload) {
+		return submit(priority, () -> {
+			select(board);
+			try {
+				return sendCommandExpect(expectedLength, payload);
+			}
+			finally {
+				select(-1);
+			}
+		});
+	}
+
+	// everything this thread submits until endGroup() runs back to back, in order, at the most urgent of their priorities
+	void beginGroup() {
+		group.set(new ArrayList<>());
+	}
+	void endGroup() {
+		List<Request<?>> g = group.get();
+		group.remove();
+		if (g.isEmpty()) return;
+		int priority = HEARTBEAT;
+		for (Request<?> r : g)
+			priority = Math.min(priority, r.priority);
+		enqueue(new Request<Void>(priority, () -> {
+			for (Request<?> r : g)
+				r.run();
+			return null;
+		}));
+	}
+
+	private synchronized void enqueue(Request<?> r) {
+		if (worker == null) {
+			worker = new Thread("spi") {
+				public void run() {
+					while (true) {
+						Request<?> r;
+						try {
+							r = requests.take();
+						} catch (InterruptedException e) {
+							return;
+						}
+						lock.lock();
+						try {
+							r.run();
+						} finally {
+							lock.unlock();
+						}
+					}
+				}
+			};
+			worker.setDaemon(true);
+			worker.setPriority(Thread.MAX_PRIORITY);
+			worker.start();
+		}
+		requests.add(r);
 	}
 	
 	public class CommandBuilder {
@@ -256,6 +530,9 @@ public class SatIO {
 		public byte[] sendExpect(int expectedLength) {
 			return sendCommandExpect(expectedLength, stream.toByteArray());
 		}
+		public CompletableFuture<byte[]> submit(int board, int priority) {
+			return SatIO.this.submit(board, priority, 0, stream.toByteArray());
+		}
 	}
 	
 	public CommandBuilder buildCommand() {
@@ -264,7 +541,7 @@ public class SatIO {
 	
 
 	public static void main(String[] args) {
-		new SatIO().buildCommand().ints(255);
+		SatIO.get().buildCommand().ints(255);
 	}
 	
 	public class Error extends RuntimeException {
@@ -274,5 +551,5 @@ public class SatIO {
 		}
 		
 	}
-
+		
 }
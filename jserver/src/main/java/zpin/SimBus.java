@@ -0,0 +1,249 @@
+package zpin;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Queue;
+import java.util.Random;
+
+/**
+ * Satellite boards on a simulated SPI bus, answering byte for byte as the real ones do (see SatIO).
+ * Used in place of the Pi's bus on the Simulated platform, with a Solenoid16 on each select
+ * listed in zpin.sim.boards (default 0,1,2,3).
+ */
+public class SimBus implements SatIO.Transport {
+	final SimBoard[] boards = new SimBoard[8];
+	int selected = -1;
+	int transfers = 0;
+	int maxTransfer = 2048;
+
+	// from zpin.sim.boards and zpin.sim.delay (filler bytes before each reply)
+	static SimBus fromConfig() {
+		SimBus bus = new SimBus();
+		int delay = Integer.getInteger("zpin.sim.delay", 3);
+		for (String num : System.getProperty("zpin.sim.boards", "0,1,2,3").split(",")) {
+			if (num.trim().isEmpty()) continue;
+			SimBoard board = new SimSolenoid16();
+			board.readyDelay = delay;
+			bus.boards[Integer.parseInt(num.trim())] = board;
+		}
+		System.out.println("simulated SPI bus, delay "+delay);
+		return bus;
+	}
+
+	public void select(int board) {
+		selected = board;
+	}
+
+	public byte[] transfer(byte[] data) {
+		transfers++;
+		byte[] in = new byte[data.length];
+		SimBoard board = selected >= 0? boards[selected] : null;
+		for (int i=0; i<data.length; i++)
+			in[i] = board != null? board.clock(data[i]) : 0;
+		return in;
+	}
+
+	public int maxTransfer() {
+		return maxTransfer;
+	}
+
+	// the framing every board shares: S len payload checksum E, then filler until R len [payload checksum]
+	static abstract class SimBoard {
+		static final int KEEP = 1024; // commands kept in received
+
+		int readyDelay = 3; // filler bytes clocked out before R
+		boolean badChecksum = false; // answer everything with C
+		final Deque<byte[]> received = new ArrayDeque<>(); // the last KEEP good commands
+		long commands = 0;
+
+		private final Queue<Byte> out = new ArrayDeque<>();
+		private int state = 0; // 0 wait for S, 1 length, 2 payload, 3 checksum, 4 E
+		private byte[] cmd;
+		private int n;
+		private byte sum;
+
+		// length cmd should be given its first bytes, or -1 if it's fine as is
+		abstract int wants(byte[] cmd);
+		// the reply to a good command
+		abstract byte[] process(byte[] cmd);
+
+		// clocks one byte each way
+		byte clock(byte b) {
+			if (!out.isEmpty())
+				return out.poll(); // busy or replying, ignores b
+			switch (state) {
+			case 0:
+				if (b == 'S') state = 1;
+				break;
+			case 1:
+				cmd = new byte[b & 0xFF];
+				n = 0;
+				state = cmd.length > 0? 2 : 3;
+				break;
+			case 2:
+				cmd[n++] = b;
+				if (n == cmd.length) state = 3;
+				break;
+			case 3:
+				sum = b;
+				state = 4;
+				break;
+			case 4:
+				state = 0;
+				if (b == 'E')
+					receive();
+				break;
+			}
+			return 0;
+		}
+
+		private void receive() {
+			for (int i=0; i<readyDelay; i++)
+				out.add((byte)0);
+			byte s = 0;
+			for (byte b : cmd) s += b;
+			if (s != sum || badChecksum) {
+				out.add((byte)'C');
+				return;
+			}
+			int wanted = cmd.length > 0? wants(cmd) : 1;
+			if (wanted >= 0 && wanted != cmd.length) {
+				out.add((byte)'L');
+				out.add((byte)wanted);
+				return;
+			}
+			commands++;
+			received.add(cmd);
+			if (received.size() > KEEP)
+				received.poll();
+			byte[] reply = process(cmd);
+			out.add((byte)'R');
+			out.add((byte)reply.length);
+			if (reply.length > 0) {
+				s = 0;
+				for (byte b : reply) {
+					out.add(b);
+					s += b;
+				}
+				out.add(s);
+			}
+		}
+
+		static int int32(byte[] cmd, int at) {
+			return (cmd[at] & 0xFF) | (cmd[at+1] & 0xFF) << 8 | (cmd[at+2] & 0xFF) << 16 | (cmd[at+3] & 0xFF) << 24;
+		}
+	}
+
+	/**
+	 * Solenoid16 firmware, api revision 3 (see Solenoid16 for the commands).  Only counts fires
+	 * and tracks on/off, there's no timing.
+	 */
+	static class SimSolenoid16 extends SimBoard {
+		static final int HW_REV = 1;
+
+		static class Solenoid {
+			Solenoid16.SolenoidMode mode = Solenoid16.SolenoidMode.Disabled;
+			boolean on = false;
+			int fires = 0;
+			int lastFireTime = 0; // ms
+			int onTime = 0; // momentary fire time, on-off max on time
+			int settleTime = 0; // input
+			int triggeredBy = -1;
+		}
+
+		final Solenoid[] solenoids = new Solenoid[16];
+		int bootId; // sent as the heartbeat, changes when the board resets
+
+		SimSolenoid16() {
+			reset();
+		}
+
+		void reset() {
+			for (int i=0; i<solenoids.length; i++)
+				solenoids[i] = new Solenoid();
+			bootId = new Random().nextInt(0x7FFF)+1;
+		}
+
+		int wants(byte[] cmd) {
+			int op = (cmd[0] & 0xFF) >> 4;
+			if ((cmd[0] & 0xFF) >= 0b11111110) return 1; // identify, heartbeat
+			switch (op) {
+			case 0b0000: // fire
+			case 0b0011: // on
+			case 0b0100: // off
+				return 1;
+			case 0b0001: // fire for
+				return 5;
+			case 0b0110: // init: mode, i32 0, u8 pulse off time, then by mode
+				if (cmd.length < 2) return 7;
+				switch (cmd[1]) {
+				case 0: return 7; // disabled
+				case 1: return 8; // input: settle time
+				case 2: return 11; // momentary: i32 fire time
+				case 3: return 12; // on-off: pulse on time, i32 max on time
+				case 4: return 16; // triggered: triggered by, i32 min, i32 max
+				default: return -1;
+				}
+			default:
+				return -1;
+			}
+		}
+
+		byte[] process(byte[] cmd) {
+			if ((cmd[0] & 0xFF) == 0b11111110)
+				return new byte[] { (byte)(Board.Type.Solenoid16.getValue() | HW_REV << 4), 3 };
+			if ((cmd[0] & 0xFF) == 0b11111111)
+				return new byte[] { (byte)(bootId >> 8), (byte)bootId };
+			Solenoid s = solenoids[cmd[0] & 0xF];
+			switch ((cmd[0] & 0xFF) >> 4) {
+			case 0b0000:
+				if (s.mode == Solenoid16.SolenoidMode.Momentary) {
+					s.fires++;
+					s.lastFireTime = s.onTime;
+				}
+				break;
+			case 0b0001:
+				if (s.mode == Solenoid16.SolenoidMode.Momentary) {
+					s.fires++;
+					s.lastFireTime = int32(cmd, 1);
+				}
+				break;
+			case 0b0011:
+				if (s.mode == Solenoid16.SolenoidMode.OnOff)
+					s.on = true;
+				break;
+			case 0b0100:
+				if (s.mode == Solenoid16.SolenoidMode.OnOff)
+					s.on = false;
+				break;
+			case 0b0110: {
+				if (cmd[1] < 0 || cmd[1] >= Solenoid16.SolenoidMode.values().length)
+					break; // not a mode this revision knows
+				Solenoid16.SolenoidMode mode = Solenoid16.SolenoidMode.values()[cmd[1]];
+				Solenoid n = new Solenoid();
+				n.mode = mode;
+				n.fires = s.fires;
+				switch (mode) {
+				case Input:
+					n.settleTime = cmd[7] & 0xFF;
+					break;
+				case Momentary:
+					n.onTime = int32(cmd, 7);
+					break;
+				case OnOff:
+					n.onTime = int32(cmd, 8);
+					break;
+				case Triggered:
+					n.triggeredBy = cmd[7] & 0xF;
+					n.onTime = int32(cmd, 12);
+					break;
+				default:
+				}
+				solenoids[cmd[0] & 0xF] = n;
+				break;
+			}
+			}
+			return new byte[0];
+		}
+	}
+}
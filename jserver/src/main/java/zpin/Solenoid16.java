@@ -1,5 +1,8 @@
 package zpin;
 
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+
 import zpin.SatIO.Error;
 
 public class Solenoid16 extends Board {
@@ -27,59 +30,47 @@ public class Solenoid16 extends Board {
 			throw new RuntimeException("wrong api revision "+apiRevision);
 		System.out.println("Identified S16 board at  "+board);
 
-		for (int i=0; i<16; i++) {
-			this.disableSolenoid((byte) (i));
-		}
+		disableAll();
 	}
 
 	byte startCommand(byte num, int cmd) {
 		return (byte) (cmd << 4 | (num));
 	}
 
-	void fireSolenoid(byte num) {
-		io.selectAnd(boardNum, () -> {
-			io.sendCommand0(
-				this.startCommand(num, 0)
-			);
-		});
+	CompletableFuture<byte[]> fireSolenoid(byte num, int priority) {
+		return io.submit(boardNum, priority, 0,
+			this.startCommand(num, 0)
+		);
 	}
 
-	void fireSolenoidFor(byte num, int onTime) {
-		io.selectAnd(boardNum, () -> {
-			io.buildCommand()
-			.bytes(
-				this.startCommand(num, 0b0001)
-			).ints(
-				onTime
-			).send0();
-		});
+	CompletableFuture<byte[]> fireSolenoidFor(byte num, int onTime, int priority) {
+		return io.buildCommand()
+		.bytes(
+			this.startCommand(num, 0b0001)
+		).ints(
+			onTime
+		).submit(boardNum, priority);
 	}
 
-	void turnOnSolenoid(byte num){
-		io.selectAnd(boardNum, () -> {
-			io.sendCommand0(
-				this.startCommand(num, 0b0011)
-			);
-		});
+	CompletableFuture<byte[]> turnOnSolenoid(byte num, int priority) {
 		this.state[num] = true;
+		return io.submit(boardNum, priority, 0,
+			this.startCommand(num, 0b0011)
+		);
 	}
-	void turnOffSolenoid(byte num){
-		io.selectAnd(boardNum, () -> {
-			io.sendCommand0(
-				this.startCommand(num, 0b0100)
-			);
-		});
+	CompletableFuture<byte[]> turnOffSolenoid(byte num, int priority) {
 		this.state[num] = false;
+		return io.submit(boardNum, priority, 0,
+			this.startCommand(num, 0b0100)
+		);
 	}
-	void toggleSolenoid(byte num){
-		this.state[num] = !this.state[num];
-		if (this.state[num]) this.turnOnSolenoid(num);
-		else this.turnOffSolenoid(num);
+	CompletableFuture<byte[]> toggleSolenoid(byte num, int priority) {
+		if (!this.state[num]) return this.turnOnSolenoid(num, priority);
+		else return this.turnOffSolenoid(num, priority);
 	}
 
-	void disableSolenoid(byte num) {
-		io.selectAnd(boardNum, () -> {
-			io.buildCommand()
+	SatIO.CommandBuilder disableCommand(byte num) {
+		return io.buildCommand()
 			.bytes(
 				this.startCommand(num, 0b0110),
 				SolenoidMode.Disabled.getValue()
@@ -87,99 +78,105 @@ public class Solenoid16 extends Board {
 				0
 			).bytes(
 				0
-			).send0();
-		});
-		this.state[num] = false;
+			);
 	}
 
-	void initMomentary(byte num) {
-		initMomentary(num, (byte)50);
-	}
-	void initMomentary(byte num, int onTime) {
-		io.selectAnd(boardNum, () -> {
-			io.buildCommand()
-			.bytes(
-				this.startCommand(num, 0b0110),
-				SolenoidMode.Momentary.getValue()
-			).ints(
-				0
-			).bytes(
-				0
-			).ints(
-				onTime
-			).send0();
-		});
+	CompletableFuture<byte[]> disableSolenoid(byte num) {
+		this.state[num] = false;
+		return disableCommand(num).submit(boardNum, SatIO.CONFIG);
 	}
 
-	void initInput(byte num) {
-		initInput(num, 3);
-	}
-	void initInput(byte num, int settleTime) {
+	// all 16 in one pipeline
+	void disableAll() {
+		SatIO.Pipeline all = io.pipeline();
+		for (int i=0; i<16; i++)
+			all.add(0, disableCommand((byte)i));
 		io.selectAnd(boardNum, () -> {
-			io.buildCommand()
-			.bytes(
-				this.startCommand(num, 0b0110),
-				SolenoidMode.Input.getValue()
-			).ints(
-				0
-			).bytes(
-				0,
-				settleTime
-			).send0();
+			all.send();
 		});
+		Arrays.fill(this.state, false);
 	}
 
-	void initTriggered(byte num, byte triggeredBy) {
-		initTriggered(num, triggeredBy, 0);
-	}
-	void initTriggered(byte num, byte triggeredBy, int minOnTime) {
-		initTriggered(num, triggeredBy, 0, 50);		
-	}
-	void initTriggered(byte num, byte triggeredBy, int minOnTime, int maxOnTime) {
-		initTriggered(num, triggeredBy, minOnTime, maxOnTime, (byte) 0);		
-	}
-	void initTriggered(byte num, byte triggeredBy, int minOnTime, int maxOnTime, byte pulseOffTime) {
-		io.selectAnd(boardNum, () -> {
-			io.buildCommand()
-			.bytes(
-				this.startCommand(num, 0b0110),
-				SolenoidMode.Input.getValue()
-			).ints(
-				0
-			).bytes(
-				pulseOffTime,
-				triggeredBy
-			).ints(
-				minOnTime,
-				maxOnTime
-			).send0();
-		});
+	CompletableFuture<byte[]> initMomentary(byte num) {
+		return initMomentary(num, (byte)50);
+	}
+	CompletableFuture<byte[]> initMomentary(byte num, int onTime) {
+		return io.buildCommand()
+		.bytes(
+			this.startCommand(num, 0b0110),
+			SolenoidMode.Momentary.getValue()
+		).ints(
+			0
+		).bytes(
+			0
+		).ints(
+			onTime
+		).submit(boardNum, SatIO.CONFIG);
 	}
 
-	void initOnOff(byte num) {
-		initOnOff(num, 0);
+	CompletableFuture<byte[]> initInput(byte num) {
+		return initInput(num, 3);
+	}
+	CompletableFuture<byte[]> initInput(byte num, int settleTime) {
+		return io.buildCommand()
+		.bytes(
+			this.startCommand(num, 0b0110),
+			SolenoidMode.Input.getValue()
+		).ints(
+			0
+		).bytes(
+			0,
+			settleTime
+		).submit(boardNum, SatIO.CONFIG);
 	}
-	void initOnOff(byte num, int maxOnTime) {
-		initOnOff(num, maxOnTime, (byte) 0);
-	}
-	void initOnOff(byte num, int maxOnTime, byte pulseOffTime) {
-		initOnOff(num, maxOnTime, pulseOffTime, (byte) 1);
+
+	CompletableFuture<byte[]> initTriggered(byte num, byte triggeredBy) {
+		return initTriggered(num, triggeredBy, 0);
+	}
+	CompletableFuture<byte[]> initTriggered(byte num, byte triggeredBy, int minOnTime) {
+		return initTriggered(num, triggeredBy, minOnTime, 50);		
+	}
+	CompletableFuture<byte[]> initTriggered(byte num, byte triggeredBy, int minOnTime, int maxOnTime) {
+		return initTriggered(num, triggeredBy, minOnTime, maxOnTime, (byte) 0);		
+	}
+	CompletableFuture<byte[]> initTriggered(byte num, byte triggeredBy, int minOnTime, int maxOnTime, byte pulseOffTime) {
+		return io.buildCommand()
+		.bytes(
+			this.startCommand(num, 0b0110),
+			SolenoidMode.Triggered.getValue()
+		).ints(
+			0
+		).bytes(
+			pulseOffTime,
+			triggeredBy
+		).ints(
+			minOnTime,
+			maxOnTime
+		).submit(boardNum, SatIO.CONFIG);
 	}
-	void initOnOff(byte num, int maxOnTime, byte pulseOffTime, byte pulseOnTime) {
-		io.selectAnd(boardNum, () -> {
-			io.buildCommand()
-			.bytes(
-				this.startCommand(num, 0b0110),
-				SolenoidMode.OnOff.getValue()
-			).ints(
-				0
-			).bytes(
-					pulseOffTime,
-					pulseOnTime
-			).ints(
-				maxOnTime
-			).send0();
-		});
+
+	CompletableFuture<byte[]> initOnOff(byte num) {
+		return initOnOff(num, 0);
+	}
+	CompletableFuture<byte[]> initOnOff(byte num, int maxOnTime) {
+		return initOnOff(num, maxOnTime, (byte) 0);
+	}
+	CompletableFuture<byte[]> initOnOff(byte num, int maxOnTime, byte pulseOffTime) {
+		return initOnOff(num, maxOnTime, pulseOffTime, (byte) 1);
+	}
+	CompletableFuture<byte[]> initOnOff(byte num, int maxOnTime, byte pulseOffTime, byte pulseOnTime) {
+		return io.buildCommand()
+		.bytes(
+			this.startCommand(num, 0b0110),
+			SolenoidMode.OnOff.getValue()
+		).ints(
+			0
+		).bytes(
+				pulseOffTime,
+				pulseOnTime
+		).ints(
+			maxOnTime
+		).submit(boardNum, SatIO.CONFIG);
 	}
 }
 
@@ -1,16 +1,18 @@
 package zpin;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
+import javax.sound.sampled.AudioFileFormat;
 import javax.sound.sampled.AudioFormat;
-import javax.sound.sampled.AudioInputStream;
 import javax.sound.sampled.AudioSystem;
 import javax.sound.sampled.Clip;
 import javax.sound.sampled.DataLine;
@@ -39,11 +41,20 @@ public class Sounds extends Thread {
 		public Clip clip;
 		
 		public Play curPlay = null;
+		int free = -1; // where it is in its track's free list, -1 if it's playing
 		
 		public Channel() {
 			
 		}
 		
+		// mixer thread
+		void set(Play play) {
+			curPlay = play;
+			if (track != null) {
+				if (play != null) track.take(this);
+				else track.release(this);
+			}
+		}
 	}
 	static Channel[] channels = new Channel[16];
 	
@@ -54,64 +65,254 @@ public class Sounds extends Thread {
 		public String name;
 		public Track[] ducks = null; // duck this track when specified tracks are active
 		public int muted = 0;
+		boolean active = false; // playing anything, as of the mixer's last block
+		Steal steal = Steal.PRIORITY; // what to do when a play finds every channel busy
+		int duckAttack = 30, duckRelease = 300; // ms to go all the way into and out of the duck
+		float duck = 0; // 0 not ducked to 1 all the way, mixer thread
+		private final Channel[] free; // channels not playing, the first freeCount
+		private int freeCount;
 		
 		public Track(Channel[] channels) {
 			this.channels = channels;
-			for (Channel c : channels)
+			this.free = channels.clone();
+			for (Channel c : channels) {
 				c.track = this;
+				c.free = freeCount++;
+			}
 		}
 		
 		public Channel getFreeChannel() {
-			for (int i=0; i<this.channels.length; i++) {
-				if (channels[i].curPlay==null)
-					return channels[i];
+			return freeCount > 0? free[freeCount-1] : null;
+		}
+		
+		private void take(Channel c) {
+			if (c.free < 0) return;
+			Channel last = free[--freeCount];
+			free[c.free] = last;
+			last.free = c.free;
+			c.free = -1;
+		}
+		
+		private void release(Channel c) {
+			if (c.free >= 0) return;
+			free[freeCount] = c;
+			c.free = freeCount++;
+		}
+		
+		// the voice play can take over when there's no free channel, or null
+		Channel victim(Play play) {
+			for (Channel c : channels)
+				if (c.curPlay != null && c.curPlay.stopping)
+					return c; // on its way out anyway
+			if (steal == Steal.NEVER) return null;
+			Channel victim = null;
+			for (Channel c : channels) {
+				Play p = c.curPlay;
+				if (p == null || p.priority > play.priority) continue;
+				if (steal == Steal.PRIORITY && p.priority == play.priority) continue;
+				if (victim == null) {
+					victim = c;
+					continue;
+				}
+				Play v = victim.curPlay;
+				switch (steal) {
+				case QUIETEST:
+					if (p.volume*c.volume < v.volume*victim.volume) victim = c;
+					break;
+				case PRIORITY:
+					if (p.priority < v.priority || (p.priority == v.priority && p.startSample < v.startSample)) victim = c;
+					break;
+				default: // OLDEST
+					if (p.startSample < v.startSample) victim = c;
+				}
 			}
-			return null;
+			return victim;
 		}
 		
+		// mixer thread
 		public void stop() {
 			for (Channel c : channels) {
 				if (c.curPlay!=null && c.curPlay.playing)
 					c.curPlay.stop();
 			}
 		}
+		
+		// mixer thread
+		void fadeOut(int ms) {
+			for (Channel c : channels) {
+				if (c.curPlay!=null && c.curPlay.playing)
+					c.curPlay.fadeOut(ms);
+			}
+		}
 	}
 	
 	static Track[] tracks = new Track[3];
 	
+	/**
+	 * Which play a track stops for a new one when all its channels are busy.  Never one with a higher
+	 * priority than the new play; PRIORITY only takes one with a lower priority, the oldest of those.
+	 */
+	enum Steal {
+		NEVER, OLDEST, QUIETEST, PRIORITY,
+	}
+	static long mixed = 0; // samples, mixer thread
+	
+	// everything but num, wav, volume and loops belongs to the mixer thread once the play's queued
 	static class Play {
-		static int playNum = 0;
-		int num = ++Play.playNum;
+		static final AtomicInteger playNum = new AtomicInteger();
+		final int num = Play.playNum.incrementAndGet();
 		Wav wav;
-		Channel channel;
+		Channel channel = null;
 		int loops = 0;
-		boolean playing = true;
+		boolean playing = false;
 		boolean finished = false;
 		float volume; // 0-1
-		long startTime = new Date().getTime();
+		int priority = 0; // higher ones are stolen from last, see Steal
+		long startSample; // on the mixer's sample count
+		double at = -1; // when it should be heard, on the SwitchMatrix.ms() timeline, or asap
+		int delay = 0; // samples of the mixer's next block to wait before starting
+		float fade = 1; // times volume, 0-1
+		float fadeStep = 0; // added to fade per sample
+		boolean stopping = false; // fading out, stops once it's silent
+		int gain = -1; // where the mixer's gain ramp got to at the end of the last block, -1 before it starts
+		Play next = null; // carries on from this once it's done, e.g. "x loop" after "x with start"
 		
 		int position = 0;
 		
-		public Play(Wav wav, Channel channel, float volume) {
+		// the samples the mixer's on: the whole wav, or the chunk of it streamed so far
+		short[] data;
+		int dataStart = 0; // position of data[0]
+		int dataLength = 0;
+		boolean dataLast = true; // data goes to the end of the wav
+		WavStream stream = null;
+		
+		// not started until the mixer gets to it, see Sounds.post()
+		// loops: times to repeat the wav's loop (the whole wav if it doesn't have one), -1 forever,
+		// 0 for what the loop's metadata says
+		Play(Wav wav, float volume, int loops) {
+			this(wav, wav.data, volume, loops);
+		}
+		// data: what Wav.load() returned, held in case the cache drops it before it starts
+		Play(Wav wav, short[] data, float volume, int loops) {
 			this.wav = wav;
-			this.channel = channel;
+			this.data = data;
 			this.volume = volume;
-			this.channel.curPlay = this;
+			this.loops = loops == 0 && wav.loop != null? wav.loop.count : loops;
+		}
+		// mixer thread, started right away
+		public Play(Wav wav, Channel channel, float volume) {
+			this(wav, volume, 0);
+			start(channel, 0);
+		}
+		
+		// mixer thread: a resident wav should be loaded first (see WavCache)
+		void start(Channel channel, int position) {
+			this.channel = channel;
+			this.position = position;
+			this.playing = true;
+			this.startSample = mixed + delay;
+			if (wav.streamed) {
+				this.data = new short[0];
+				this.dataStart = position;
+				this.dataLast = false;
+				if (this.stream == null)
+					this.stream = new WavStream(this, position);
+			}
+			else {
+				if (this.data == null)
+					this.data = new short[0];
+				this.dataLength = this.data.length;
+			}
+			if (next != null && next.wav.streamed)
+				next.stream = new WavStream(next, 0); // its first chunk's ready by the time it's needed
+			this.channel.set(this);
+			this.wav.curPlay = this;
+			this.wav.lastPlay = this;
 			System.out.println(""+this.num+"|"+this.channel.num+"| started");
 		}
 		
+		// mixer thread, streamed: moves on to the next chunk, false if it's not been read yet
+		boolean nextChunk() {
+			WavStream.Chunk c = stream.take();
+			if (c == null) return false;
+			data = c.data;
+			dataStart = c.start;
+			dataLength = c.length;
+			dataLast = c.last;
+			return true;
+		}
+		
+		// mixer thread: back to the start of the loop, the stream's reader does the same on its own
+		void loop() {
+			if (loops > 0) loops--;
+			position = wav.loopStart;
+			if (stream != null) {
+				dataStart = position;
+				dataLength = 0;
+				dataLast = false;
+			}
+		}
+		
+		// before it's queued
+		void fadeIn(int ms) {
+			if (ms <= 0) return;
+			fade = 0;
+			fadeStep = 1000f / (ms * targetFormat.getSampleRate());
+		}
+		
+		// mixer thread
+		void fadeOut(int ms) {
+			if (ms <= 0) {
+				stop();
+				return;
+			}
+			stopping = true;
+			fadeStep = -1000f / (ms * targetFormat.getSampleRate());
+		}
+		
+		// mixer thread, moves the fade on by a block
+		void fade(int samples) {
+			fade += fadeStep * samples;
+			if (fade >= 1) {
+				fade = 1;
+				fadeStep = 0;
+			}
+			else if (fade <= 0) {
+				fade = 0;
+				fadeStep = 0;
+			}
+		}
+		
+		// mixer thread: next, taking over how this is being played
+		Play follow() {
+			next.volume = volume;
+			next.priority = priority;
+			next.fade = fade;
+			next.fadeStep = fadeStep;
+			next.stopping = stopping;
+			next.gain = gain;
+			return next;
+		}
+		
+		// mixer thread
 		public void stop() {
+			if (this.stream != null) this.stream.close();
+			if (this.next != null && this.next.stream != null) this.next.stream.close();
 			this.playing = false;
 			System.out.println(""+this.num+"|"+this.channel.num+"| stopped");
-			this.channel.curPlay = null;
+			if (this.channel.curPlay == this)
+				this.channel.set(null);
 			this.wav.curPlay = null;
 		}
 
+		// mixer thread
 		public void completed() {
+			if (this.stream != null) this.stream.close();
 			this.finished = true;
 			this.playing = false;
 			System.out.println(""+this.num+"|"+this.channel.num+"| completed");
-			this.channel.curPlay = null;
+			if (this.channel.curPlay == this)
+				this.channel.set(null);
 			this.wav.curPlay = null;
 		}
 	}
@@ -122,41 +323,72 @@ public class Sounds extends Thread {
 		public Play curPlay = null;
 		public Play lastPlay = null;
 		public File file;
-		private AudioFormat format;
-		public short[] data;
+		final boolean streamed; // too long to keep in memory, played from disk
+		volatile short[] data = null; // decoded, while it's resident (see WavCache)
+		final PcmStore.Entry pcm; // already converted, if there's a store
+		final WavLoop loop; // null to loop the whole thing
+		final int loopStart, loopEnd; // samples, loopEnd -1 for the end
+		
+		// only reads the header, the samples are loaded when it's played
+		public Wav(File file) throws UnsupportedAudioFileException, IOException {
+			this(file, null);
+		}
 		
-		public Wav(File file) throws UnsupportedAudioFileException, IOException, LineUnavailableException {
+		Wav(File file, PcmStore.Entry pcm) throws UnsupportedAudioFileException, IOException {
 			this.name = file.getName().split("\\.")[0];
 			this.file = file;
-	
-			AudioInputStream oStream = AudioSystem.getAudioInputStream(file);
-			AudioInputStream stream = AudioSystem.getAudioInputStream(targetFormat, oStream);
-		    format = stream.getFormat();
-		    
-		    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-		    int nRead;
-		    byte[] data = new byte[1024];
-		    while ((nRead = stream.read(data, 0, data.length)) != -1) {
-		        buffer.write(data, 0, nRead);
-		    }
-		 
-		    buffer.flush();
-		    byte[] bytes = buffer.toByteArray();
-		    this.data = new short[bytes.length/2];
-		    for (int i=0; i<bytes.length; i+=2)
-		    	this.data[i/2] = (short)(((bytes[i+0] & 0xFF) << 8) | (bytes[i+1] & 0xFF));
-		    this.length = this.data.length / format.getSampleRate();
-		}
-		
-		public Play play(Channel channel, float volume, boolean resume) throws LineUnavailableException, IOException, UnsupportedAudioFileException {
+			this.pcm = pcm;
+			
+			if (pcm != null)
+				this.length = pcm.length / targetFormat.getSampleRate();
+			else {
+				AudioFileFormat format = AudioSystem.getAudioFileFormat(file);
+				this.length = format.getFrameLength() / format.getFormat().getFrameRate();
+			}
+			this.streamed = this.length > WavCache.STREAM_OVER;
+			WavLoop loop = WavLoop.read(file);
+			if (loop != null && loop.start >= this.length*targetFormat.getSampleRate()) {
+				System.out.println("ERROR loop of "+file.getName()+" starts after its end");
+				loop = null;
+			}
+			this.loop = loop;
+			this.loopStart = loop != null? loop.start : 0;
+			this.loopEnd = loop != null? loop.end : -1;
+		}
+		
+		// already decoded to targetFormat, always resident
+		Wav(String name, short[] data) {
+			this.name = name;
+			this.data = data;
+			this.length = data.length / targetFormat.getSampleRate();
+			this.streamed = false;
+			this.pcm = null;
+			this.loop = null;
+			this.loopStart = 0;
+			this.loopEnd = -1;
+		}
+		
+		boolean resident() {
+			return data != null;
+		}
+		
+		// makes sure it can be played without the mixer touching the disk, returning the samples to play
+		// (null if it's streamed)
+		short[] load() throws IOException, UnsupportedAudioFileException {
+			if (!this.streamed && this.file != null)
+				return WavCache.get().load(this);
+			return this.data;
+		}
+		
+		// mixer thread
+		void play(Play play, Channel channel, boolean resume) {
 			if (this.curPlay != null && !this.curPlay.finished) {
 				this.curPlay.stop();
 			}
-			this.curPlay = new Play(this, channel, volume);
+			int position = 0;
 			if (resume && this.lastPlay != null && !this.lastPlay.finished)
-				this.curPlay.position = this.lastPlay.position;
-			
-			return this.lastPlay = this.curPlay;
+				position = this.lastPlay.position;
+			play.start(channel, position);
 		}
 	}
 	
@@ -166,6 +398,14 @@ public class Sounds extends Thread {
 		public Sound(String name) {
 			this.name = name;
 		}
+		
+		// every clip can start without touching the disk
+		boolean resident() {
+			for (Wav wav : files)
+				if (!wav.streamed && !wav.resident())
+					return false;
+			return true;
+		}
 	}
 	
 	HashMap<String, Sound> sounds = new HashMap<String, Sound>();
@@ -224,6 +464,34 @@ public class Sounds extends Thread {
 			System.exit(1);
 		}
 		
+		initTracks();
+		
+		String mediaDir = "./media";
+		System.out.println("Reading sound files...");
+		File[] files = new File(mediaDir).listFiles((dir, n) -> n.endsWith(".wav") && new File(dir, n).isFile());
+		PcmStore store = PcmStore.open(new File(mediaDir), files);
+		for (File file : files) {
+			String[] parts = file.getName().split("\\.")[0].split("_");
+			String name = parts[0];
+			try {
+				Wav wav = new Wav(file, store != null? store.get(file.getName()) : null);
+				if (!sounds.containsKey(parts[0]))
+					sounds.put(name, new Sound(name));
+				sounds.get(name).files.add(wav);
+//				System.out.println("Sound file '"+file.getName()+"' loaded successfully");
+			} catch (UnsupportedAudioFileException | IOException e) {
+				System.out.println("ERROR loading sound file '"+file.getName());
+				e.printStackTrace();
+			}
+		}
+		WavCache.get().preload(new File(mediaDir, "preload.txt"), sounds);
+		System.out.println(WavCache.get().stats());
+		
+		this.start();
+	}
+	
+	// the channels and the tracks they're split into
+	static void initTracks() {
 		for (int i=0; i<channels.length; i++)
 //			try {
 				channels[i] = new Channel();
@@ -253,6 +521,7 @@ public class Sounds extends Thread {
 		});
 		tracks[1].name = "effects";
 		tracks[1].duckVolume = 0.8f;
+		tracks[1].steal = Steal.OLDEST;
 		
 		tracks[2] = new Track(new Channel[] {
 				channels[ci++],
@@ -266,87 +535,30 @@ public class Sounds extends Thread {
 		tracks[1].ducks = new Track[] {
 				tracks[2],
 		};
-		
-		String mediaDir = "./media";
-		System.out.println("Loading sound files...");
-		File[] files = new File(mediaDir).listFiles();
-		for (File file : files) {
-			if (file.isFile() && file.getName().endsWith(".wav")) {
-				String[] parts = file.getName().split("\\.")[0].split("_");
-				String name = parts[0];
-				try {
-					Wav wav = new Wav(file);
-					if (!sounds.containsKey(parts[0]))
-						sounds.put(name, new Sound(name));
-					sounds.get(name).files.add(wav);
-//					System.out.println("Sound file '"+file.getName()+"' loaded successfully");
-//					System.out.println("seconds: "+wav.length+" bits: "+wav.format.getSampleSizeInBits()+" hz: "+wav.format.getSampleRate()+" encoding: "+wav.format.getEncoding());
-				} catch (UnsupportedAudioFileException | IOException | LineUnavailableException e) {
-					System.out.println("ERROR loading sound file '"+file.getName());
-					e.printStackTrace();
-				}
-			}
-		}
-		
-		this.start();
 	}
 	
 	public void run() {
 		int bytesPerSample = line.getFormat().getSampleSizeInBits()/8;
 		ByteBuffer buf = ByteBuffer.allocate(line.getBufferSize());
+		int size = line.getBufferSize()/bytesPerSample;
+		double rate = targetFormat.getSampleRate();
+		long written = 0; // samples
 		while (true) {
 			int needed = line.available()/bytesPerSample;
-			if (needed > line.getBufferSize()/bytesPerSample / 2)
+			if (needed > size / 2)
 			{
 //				System.out.println("generate "+needed+" samples");
+				long start = System.nanoTime();
+				int left = size-needed;
+				fill.record((long)(left*1000000/rate));
+				if (left < rate/1000)
+					underruns.incrementAndGet();
 				buf.clear();
-//				double t = 0;
-				for (int i=0; i<needed; i++) {
-					double sample = 0;
-					for (int c=0; c<channels.length; c++) {
-						Channel channel = channels[c];
-						Play curPlay = channel.curPlay;
-						if (curPlay==null || !curPlay.playing) continue;
-						Wav wav = curPlay.wav;
-						short s = wav.data[curPlay.position++];
-						if (curPlay.position >= wav.data.length) {
-							if (curPlay.loops-- == 0) {
-								curPlay.completed();
-								if (curPlay.wav.name.equals("green grass slow with start") || curPlay.wav.name.equals("green grass slow loop"))
-									channel.curPlay = new Play(this.sounds.get("green grass slow loop").files.get(0), channel, curPlay.volume);
-								if (curPlay.wav.name.equals("green grass solo with start") || curPlay.wav.name.equals("green grass solo loop"))
-									channel.curPlay = new Play(this.sounds.get("green grass solo loop").files.get(0), channel, curPlay.volume);
-							}
-							else
-								curPlay.position = 0;
-						}
-//						System.out.println(s+","+((double)s)*curPlay.volume);//+","+(short)(((double)s)*curPlay.volume));
-						float volume = curPlay.volume;
-						volume *= channel.volume;
-						if (channel.track != null) {
-							boolean ducked = false;
-							if (channel.track.ducks != null)
-								for (Track t : channel.track.ducks)
-									for (Channel cc : t.channels)
-										if (cc.curPlay != null && cc.curPlay.playing)
-											ducked = true;
-							volume *= !ducked? channel.track.volume : channel.track.duckVolume;
-						}
-						if (channel.track.muted>0)
-							volume = 0;
-						sample += ((double)s)*volume;
-					}
-					short total;
-					if (sample < Short.MIN_VALUE)
-						total = Short.MIN_VALUE;
-					else if (sample > Short.MAX_VALUE)
-						total = Short.MAX_VALUE;
-					else total = (short) sample;
-					buf.putShort(total);
-//					t+=sample;
-				}
-//				System.out.println("avg "+(t/needed));
+				clock(written, line.getLongFramePosition());
+				mix(buf, needed);
+				mixTime.record((System.nanoTime()-start)/1000);
 				this.line.write(buf.array(), 0, buf.position());
+				written += needed;
 			}
 			try {
 				Thread.sleep(5);
@@ -355,9 +567,313 @@ public class Sounds extends Thread {
 		}
 	}
 
-	public Play playSound(String name, int trackNum, float volume, boolean resume) throws Exception {
-		long start = System.nanoTime();
-		System.out.println(""+(Play.playNum+1)+"|?| "+start/1000000+": sound '"+name+"' requested (resume="+resume+")");
+	final double outputLatency = Double.parseDouble(System.getProperty("zpin.sound.latency", "0")); // ms after the line plays a sample it's heard
+	volatile double bufferedLatency = 0; // ms, written to the line but not played yet, as of the last block
+	double blockAt = 0; // when the first sample of the next block will be heard, ms
+	private int lastBlock = 0; // samples
+	private final ArrayList<Cmd> scheduled = new ArrayList<>(); // mixer thread, plays waiting for their time
+	
+	// mixer thread: works out blockAt from how far the line's got through what's been written
+	// follows the sample count from block to block, nudged toward the measurement so it doesn't jitter
+	void clock(long written, long played) {
+		double rate = targetFormat.getSampleRate();
+		bufferedLatency = (written-played)*1000/rate;
+		double measured = SwitchMatrix.ms() + bufferedLatency + outputLatency;
+		double predicted = blockAt + lastBlock*1000/rate;
+		if (lastBlock == 0 || Math.abs(measured-predicted) > 20) // starting, or it underran
+			blockAt = measured;
+		else
+			blockAt = predicted + (measured-predicted)/8;
+	}
+	
+	String latency() {
+		return String.format("buffered %.1fms output %.1fms late %d", bufferedLatency, outputLatency, late.get());
+	}
+	
+	// telemetry, written by the mixer, cheap enough to leave on
+	final AtomicLong underruns = new AtomicLong(); // blocks mixed with under 1ms left in the line
+	final AtomicLong dropped = new AtomicLong(); // plays with no free channel on their track
+	final AtomicLong skipped = new AtomicLong(); // plays skipped for a longer one just started
+	final AtomicLong stolen = new AtomicLong(); // plays stopped to make room for a new one (see Steal)
+	final AtomicLong late = new AtomicLong(); // scheduled plays that got to the mixer after they should've started
+	final Histogram fill = new Histogram(); // us of audio left in the line when a block's mixed
+	final Histogram mixTime = new Histogram(); // us per block
+	final Histogram voices = new Histogram(); // plays mixed per block
+	
+	String stats() {
+		return "underruns="+underruns.get()+" dropped="+dropped.get()+" skipped="+skipped.get()+" stolen="+stolen.get()+" late="+late.get()
+			+" fill(us) "+fill+" mix(us) "+mixTime+" voices "+voices+" "+latency();
+	}
+	
+	// mixer thread: drops the scheduled plays on track (-1 all)
+	void unschedule(int track) {
+		for (int i=0; i<scheduled.size(); i++)
+			if (track == -1 || scheduled.get(i).track == track) {
+				scheduled.get(i).play.finished = true;
+				scheduled.remove(i--);
+			}
+	}
+	
+	// mixer thread: starts the scheduled plays due in the next samples, at the right sample
+	void startScheduled(int samples) {
+		double rate = targetFormat.getSampleRate();
+		for (int i=0; i<scheduled.size(); i++) {
+			Cmd cmd = scheduled.get(i);
+			int offset = (int)Math.round((cmd.play.at - blockAt) * rate / 1000);
+			if (offset >= samples) continue;
+			scheduled.remove(i--);
+			if (offset < 0) {
+				late.incrementAndGet();
+				offset = 0;
+			}
+			cmd.play.delay = offset;
+			start(cmd.play, cmd.track, cmd.resume);
+		}
+	}
+	
+	static final int GAIN_BITS = 12; // fixed point gains, 1 << GAIN_BITS is 1
+	static final int MAX_GAIN = (1 << (31-GAIN_BITS)) / 32768 << GAIN_BITS; // so sample*gain fits in an int
+	
+	private int[] mixBuf = new int[0];
+	private final int[] gains = new int[channels.length];
+	
+	static final int RAMP_BITS = 12; // fraction bits of a gain while it's ramped across a block
+	static final int DECLICK = 5; // ms, stopping a track fades it out over this instead of cutting it
+	
+	// what a channel's play should be multiplied by by the end of the block:
+	// play * fade * channel * track volume (eased toward its duck volume), 0 if muted
+	int gain(Channel channel, Play play) {
+		float volume = play.volume * play.fade * channel.volume;
+		Track track = channel.track;
+		if (track != null) {
+			if (track.muted > 0)
+				return 0;
+			volume *= track.volume + (track.duckVolume - track.volume) * track.duck;
+		}
+		return (int)Math.min(volume * (1 << GAIN_BITS), MAX_GAIN);
+	}
+	
+	// moves each track's duck toward whether anything it ducks for is playing
+	void duck(int samples) {
+		float ms = samples * 1000f / targetFormat.getSampleRate();
+		for (Track track : tracks) {
+			if (track == null || track.ducks == null) continue;
+			boolean ducked = false;
+			for (Track t : track.ducks)
+				if (t.active)
+					ducked = true;
+			if (ducked)
+				track.duck = Math.min(1, track.duck + ms / track.duckAttack);
+			else
+				track.duck = Math.max(0, track.duck - ms / track.duckRelease);
+		}
+	}
+	
+	// adds the next samples of everything playing to buf
+	// gains are worked out once for the block, then each play is summed in runs up to its end
+	void mix(ByteBuffer buf, int samples) {
+		if (mixBuf.length < samples)
+			mixBuf = new int[samples];
+		int[] mix = mixBuf;
+		Arrays.fill(mix, 0, samples, 0);
+		drain();
+		if (!scheduled.isEmpty())
+			startScheduled(samples);
+		lastBlock = samples;
+		
+		int playing = 0;
+		for (Track t : tracks) {
+			if (t == null) continue;
+			t.active = false;
+			for (Channel c : t.channels)
+				if (c.curPlay != null && c.curPlay.playing) {
+					t.active = true;
+					playing++;
+				}
+		}
+		voices.record(playing);
+		duck(samples);
+		for (int c=0; c<channels.length; c++) {
+			Play play = channels[c].curPlay;
+			if (play != null && play.playing) {
+				if (play.gain < 0)
+					play.gain = gain(channels[c], play); // just started, ramps from where its fade is now
+				if (play.fadeStep != 0)
+					play.fade(samples);
+				gains[c] = gain(channels[c], play);
+			}
+		}
+		
+		for (int c=0; c<channels.length; c++) {
+			Channel channel = channels[c];
+			Play curPlay = channel.curPlay;
+			if (curPlay == null || !curPlay.playing) continue;
+			// the gain goes in a straight line from where the last block left it to this block's
+			int to = gains[c];
+			int from = curPlay.gain;
+			curPlay.gain = to;
+			int step = ((to - from) << RAMP_BITS) / samples;
+			boolean silent = from == 0 && to == 0;
+			Play faded = curPlay.stopping && curPlay.fade == 0? curPlay : null; // stopped once it's ramped down
+			int i = 0;
+			if (curPlay.delay > 0) {
+				i = Math.min(curPlay.delay, samples);
+				curPlay.delay -= i;
+			}
+			while (i < samples && curPlay != null && curPlay.playing) {
+				short[] data = curPlay.data;
+				int pos = curPlay.position - curPlay.dataStart;
+				int n = Math.min(samples-i, curPlay.dataLength-pos);
+				int loopEnd = curPlay.wav.loopEnd;
+				boolean toLoop = curPlay.loops != 0 && loopEnd > curPlay.position && loopEnd-curPlay.position <= n;
+				if (toLoop)
+					n = loopEnd-curPlay.position;
+				if (!silent) {
+					int ramp = (from << RAMP_BITS) + step*i;
+					for (int k=0; k<n; k++, ramp += step)
+						mix[i+k] += (data[pos+k] * (ramp >> RAMP_BITS)) >> GAIN_BITS;
+				}
+				i += n;
+				curPlay.position += n;
+				if (toLoop)
+					curPlay.loop(); // mid wav, straight on to the loop's start
+				else if (pos+n >= curPlay.dataLength) {
+					if (!curPlay.dataLast) {
+						if (!curPlay.nextChunk())
+							break; // not read yet, silent for the rest of the block
+						continue;
+					}
+					if (curPlay.loops == 0 || curPlay.position == 0) {
+						curPlay.completed();
+						if (curPlay.next != null) {
+							Channel ch = curPlay.channel;
+							curPlay = curPlay.follow(); // same gain, the ramp carries on
+							curPlay.start(ch, 0);
+						}
+						else
+							curPlay = null;
+					}
+					else
+						curPlay.loop();
+				}
+			}
+			if (faded != null && faded.playing)
+				faded.stop();
+		}
+		
+		for (int i=0; i<samples; i++) {
+			int sample = mix[i];
+			if (sample < Short.MIN_VALUE)
+				sample = Short.MIN_VALUE;
+			else if (sample > Short.MAX_VALUE)
+				sample = Short.MAX_VALUE;
+			buf.putShort((short)sample);
+		}
+		mixed += samples;
+	}
+
+	// what connection threads ask of the mixer, applied in order at the start of its next block
+	static class Cmd {
+		static final int PLAY = 0, STOP_TRACK = 1, STOP_ALL = 2, MUTE = 3, STEAL = 4, FADE = 5;
+		final int op;
+		Play play;
+		boolean resume;
+		int track;
+		int mute; // +1/-1
+		Steal steal;
+		int ms;
+		Cmd(int op) {
+			this.op = op;
+		}
+	}
+	
+	static final int CMDS = 256; // power of two
+	// ring, as CmdLog's: slot i is free for the producer claiming pos when cmdSeq[i] == pos,
+	// and readable when cmdSeq[i] == pos+1
+	private final AtomicLong cmdTail = new AtomicLong();
+	private final AtomicLongArray cmdSeq = new AtomicLongArray(CMDS);
+	private final Cmd[] cmds = new Cmd[CMDS];
+	private long cmdHead = 0; // mixer thread only
+	{
+		for (int i=0; i<CMDS; i++)
+			cmdSeq.set(i, i);
+	}
+	
+	// any thread, never blocks
+	void post(Cmd cmd) throws ZError {
+		long pos;
+		while (true) {
+			pos = cmdTail.get();
+			long s = cmdSeq.get((int)(pos & (CMDS-1)));
+			if (s == pos) {
+				if (cmdTail.compareAndSet(pos, pos+1))
+					break;
+			}
+			else if (s < pos)
+				throw new ZError("sound queue full");
+		}
+		int i = (int)(pos & (CMDS-1));
+		cmds[i] = cmd;
+		cmdSeq.lazySet(i, pos+1);
+	}
+	
+	// mixer thread
+	void drain() {
+		while (true) {
+			int i = (int)(cmdHead & (CMDS-1));
+			if (cmdSeq.get(i) != cmdHead+1)
+				return;
+			Cmd cmd = cmds[i];
+			cmds[i] = null;
+			cmdSeq.lazySet(i, cmdHead+CMDS);
+			cmdHead++;
+			switch (cmd.op) {
+			case Cmd.PLAY:
+				if (cmd.play.at >= 0)
+					scheduled.add(cmd);
+				else
+					start(cmd.play, cmd.track, cmd.resume);
+				break;
+			case Cmd.STOP_TRACK:
+				tracks[cmd.track].fadeOut(DECLICK);
+				unschedule(cmd.track);
+				break;
+			case Cmd.STOP_ALL:
+				for (Track t : tracks)
+					t.fadeOut(DECLICK);
+				unschedule(-1);
+				break;
+			case Cmd.FADE:
+				tracks[cmd.track].fadeOut(cmd.ms);
+				unschedule(cmd.track);
+				break;
+			case Cmd.MUTE:
+				tracks[cmd.track].muted += cmd.mute;
+				break;
+			case Cmd.STEAL:
+				tracks[cmd.track].steal = cmd.steal;
+				break;
+			}
+		}
+	}
+
+	public Play playSound(String name, int trackNum, float volume, int loops, boolean resume) throws Exception {
+		return playSound(name, trackNum, volume, loops, resume, -1, 0);
+	}
+	
+	// queues a play of name, returning it (not yet started) right away
+	// at: when it should be heard, on the SwitchMatrix.ms() timeline, or -1 for as soon as possible
+	// priority: see Steal
+	public Play playSound(String name, int trackNum, float volume, int loops, boolean resume, double at, int priority) throws Exception {
+		Play play = prepare(name, volume, loops);
+		play.at = at;
+		play.priority = priority;
+		queue(play, trackNum, resume);
+		return play;
+	}
+	
+	// a play of name, loaded, for queue() once anything else about it's set
+	public Play prepare(String name, float volume, int loops) throws Exception {
 		int index = -1;
 		if (name.contains("_")) {
 			String[] parts = name.split("_");
@@ -367,42 +883,119 @@ public class Sounds extends Thread {
 		Sound sound = this.sounds.get(name);
 		if (sound == null)
 			throw new Exception("sound '"+name+"' not found");
-		if (resume && name.endsWith("with start")) {
-			Sound loop = this.sounds.get(name.substring(0, name.length() - "with start".length())+"loop");
-			Wav loopWav = loop.files.get(0);
-			if (loopWav.curPlay != null && !loopWav.curPlay.finished) {
-				sound = loop;
-				System.out.println("swap for "+loop.name);
-			}
-		}
 		
 		if (index == -1)
 			index = (int) (Math.random()*sound.files.size());
 		Wav wav = sound.files.get(index);
-		Track track = this.tracks[trackNum];
+		Play play = new Play(wav, wav.load(), volume, loops);
+		if (wav.loop == null && name.endsWith(" with start")) {
+			// no loop in the file, so it's followed by "x loop" forever
+			Sound loop = this.sounds.get(name.substring(0, name.length() - "with start".length())+"loop");
+			if (loop != null) {
+				Wav loopWav = loop.files.get(0);
+				play.next = new Play(loopWav, loopWav.load(), volume, -1);
+			}
+		}
+		return play;
+	}
+	
+	public void queue(Play play, int trackNum, boolean resume) throws ZError {
+		long start = System.nanoTime();
+		checkTrack(trackNum);
+		Cmd cmd = new Cmd(Cmd.PLAY);
+		cmd.play = play;
+		cmd.track = trackNum;
+		cmd.resume = resume;
+		post(cmd);
+		System.out.println(""+play.num+"|?| "+start/1000000+": sound '"+play.wav.name+"' queued (resume="+resume+")");
+	}
+	
+	static final int JUST_STARTED = 2205; // samples, 50ms: a play this new is skipped for or canceled by the next
+	
+	// mixer thread: finds play a channel on the track, or drops it
+	void start(Play play, int trackNum, boolean resume) {
+		if (resume && play.next != null && play.next.wav.curPlay != null && play.next.wav.curPlay.playing) {
+			// the loop's still going, carry on with it instead of starting over
+			System.out.println(""+play.num+"|?| swap for "+play.next.wav.name);
+			play.finished = true;
+			play = play.follow();
+		}
+		Wav wav = play.wav;
+		Track track = tracks[trackNum];
+		long startSample = mixed + play.delay;
 		for (Channel c : track.channels) {
 			if (c.curPlay!=null && c.curPlay.playing)
-				if (new Date().getTime()-c.curPlay.startTime<50)// || c.curPlay.wav == wav)
-					if (c.curPlay.wav.length > wav.length) {
-						System.out.println(""+(Play.playNum+1)+"|?| "+System.nanoTime()/1000000+": skipping for "+c.curPlay.wav.name);
-						return null;
+				if (startSample-c.curPlay.startSample < JUST_STARTED)// || c.curPlay.wav == wav)
+					if (c.curPlay.wav.length > wav.length && c.curPlay.priority >= play.priority) {
+						System.out.println(""+play.num+"|?| "+System.nanoTime()/1000000+": skipping for "+c.curPlay.wav.name);
+						skipped.incrementAndGet();
+						play.finished = true;
+						return;
 					} else {
-						System.out.println(""+(Play.playNum+1)+"|?| "+System.nanoTime()/1000000+": canceling "+c.curPlay.wav.name);
+						System.out.println(""+play.num+"|?| "+System.nanoTime()/1000000+": canceling "+c.curPlay.wav.name);
 						c.curPlay.stop();
 					}
 		}
-				
+		
 		Channel channel = track.getFreeChannel();
-		if (channel == null) return null;
-		Play play = wav.play(channel, volume, resume);
-//		if (wav.name.equals("green grass slow with start"))
-//			play.position = wav.data.length*95/100;
-		System.out.println(""+play.num+"|"+play.channel.num+"| "+System.nanoTime()/1000000+": play sound '"+play.wav.name+"' on t "+trackNum+" c "+channel.num+" in "+(System.nanoTime()-start)/1000000);
-		return play;
+		if (channel == null) {
+			channel = track.victim(play);
+			if (channel == null) {
+				System.out.println(""+play.num+"|?| "+System.nanoTime()/1000000+": no free channel on t "+trackNum);
+				dropped.incrementAndGet();
+				play.finished = true;
+				return;
+			}
+			System.out.println(""+play.num+"|?| "+System.nanoTime()/1000000+": stealing c "+channel.num+" from "+channel.curPlay.wav.name+" ("+track.steal+")");
+			stolen.incrementAndGet();
+			channel.curPlay.stop();
+		}
+		wav.play(play, channel, resume);
+		System.out.println(""+play.num+"|"+play.channel.num+"| "+System.nanoTime()/1000000+": play sound '"+play.wav.name+"' on t "+trackNum+" c "+channel.num);
+	}
+	
+	static void checkTrack(int track) throws ZError {
+		if (track < 0 || track >= tracks.length)
+			throw new ZError("no track "+track);
+	}
+	
+	public void stopTrack(int track) throws ZError {
+		checkTrack(track);
+		Cmd cmd = new Cmd(Cmd.STOP_TRACK);
+		cmd.track = track;
+		post(cmd);
+	}
+	
+	public void mute(int track, boolean muted) throws ZError {
+		checkTrack(track);
+		Cmd cmd = new Cmd(Cmd.MUTE);
+		cmd.track = track;
+		cmd.mute = muted? 1 : -1;
+		post(cmd);
+	}
+	
+	// fades out everything on track over ms
+	public void fadeOut(int track, int ms) throws ZError {
+		checkTrack(track);
+		Cmd cmd = new Cmd(Cmd.FADE);
+		cmd.track = track;
+		cmd.ms = ms;
+		post(cmd);
+	}
+	
+	public void steal(int track, Steal steal) throws ZError {
+		checkTrack(track);
+		Cmd cmd = new Cmd(Cmd.STEAL);
+		cmd.track = track;
+		cmd.steal = steal;
+		post(cmd);
 	}
 	
 	public void stopAll() {
-		for (Track t : tracks)
-			t.stop();
+		try {
+			post(new Cmd(Cmd.STOP_ALL));
+		} catch (ZError e) {
+			System.out.println("ERROR can't stop sounds: "+e.getMessage());
+		}
 	}
 }
@@ -0,0 +1,104 @@
+package zpin;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import zpin.SwitchMatrix.Event;
+import zpin.SwitchMatrix.Switch;
+
+/**
+ * Runs switch triggers (see set-trigger) on their own thread as soon as the switch scan
+ * reports the debounced close, whether or not the connection that set them is sending anything.
+ */
+public class Triggers extends Thread {
+	// a command parsed when it was set, run as if sent by its owner whenever its switch closes
+	static class Trigger {
+		final JServer owner; // the trigger runner of the connection that set it
+		final String line;
+		int seq = 0;
+		int board = -1;
+		final Args.Text text = new Args.Text();
+		final Commands.Slots slots = new Commands.Slots();
+		final Commands.Command cmd;
+
+		// errors go to c as the reply to set-trigger
+		Trigger(JServer c, String line) throws ZError {
+			this.owner = c.triggerRunner();
+			this.line = line;
+			String input = line.trim();
+			if (input.startsWith("#")) {
+				int space = input.indexOf(' ');
+				try {
+					seq = Integer.parseInt(input.substring(1, space != -1? space : input.length()));
+				} catch (NumberFormatException e) {
+					c.error("bad seq in trigger '"+line+"'");
+				}
+				input = space != -1? input.substring(space+1).trim() : "";
+			}
+			int colon = JServer.boardPrefix(input);
+			if (colon != -1) {
+				board = Integer.parseInt(input.substring(0, colon));
+				input = input.substring(colon+1).trim();
+			}
+			text.set(input);
+			Commands.Command cmd = Commands.get(text.name());
+			if (cmd == null)
+				c.error("unknown command '"+text.name()+"'");
+			this.cmd = slots.parse(c, cmd, text);
+		}
+
+		public String toString() {
+			return line;
+		}
+	}
+
+	private final BlockingQueue<Event> fired = new ArrayBlockingQueue<>(64);
+	final Histogram latency = new Histogram(); // us from the debounced switch event to the command starting
+	final AtomicLong dropped = new AtomicLong();
+
+	private static Triggers instance = null;
+	public static synchronized Triggers get() {
+		if (instance == null) {
+			instance = new Triggers();
+			instance.start();
+		}
+		return instance;
+	}
+
+	private Triggers() {
+		super("triggers");
+		setDaemon(true);
+		setPriority(MAX_PRIORITY);
+	}
+
+	// switch scan thread
+	void fire(Event e) {
+		if (!fired.offer(e)) {
+			dropped.incrementAndGet();
+			System.out.println("ERR   trigger queue full, dropped "+e);
+		}
+	}
+
+	@Override
+	public void run() {
+		SwitchMatrix matrix = SwitchMatrix.get();
+		while (true) {
+			Event e;
+			try {
+				e = fired.take();
+			} catch (InterruptedException ex) {
+				return;
+			}
+			Switch sw = matrix.switches[e.row*matrix.Width+e.col];
+			Trigger t = sw.trigger;
+			if (t == null) continue; // disabled since
+			latency.record((long)((SwitchMatrix.ms() - e.when)*1000));
+			t.owner.fire(t);
+		}
+	}
+
+	String stats() {
+		return "dropped="+dropped.get()+" latency(us) "+latency;
+	}
+}
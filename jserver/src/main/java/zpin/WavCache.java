@@ -0,0 +1,127 @@
+package zpin;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+import zpin.Sounds.Sound;
+import zpin.Sounds.Wav;
+
+/**
+ * Decoded wavs (copied out of the PcmStore if there is one), loaded the first time they're played and dropped least recently played first once
+ * they take more than zpin.sound.cache MB (default 64).  Wavs longer than zpin.sound.stream seconds
+ * (default 20) are never loaded, they play from disk (see WavStream).  Sounds listed in
+ * media/preload.txt, one name per line, are loaded at startup.
+ */
+public class WavCache {
+	long budget = Long.getLong("zpin.sound.cache", 64) << 20; // bytes
+	static final double STREAM_OVER = Double.parseDouble(System.getProperty("zpin.sound.stream", "20")); // seconds
+
+	private final LinkedHashMap<Wav, short[]> resident = new LinkedHashMap<>(64, .75f, true);
+	private long used = 0;
+	long hits = 0, misses = 0, evictions = 0;
+
+	private static WavCache instance = null;
+	public static synchronized WavCache get() {
+		if (instance == null)
+			instance = new WavCache();
+		return instance;
+	}
+
+	// wav's samples, loading them if they're not resident.  Plays hold on to what this returns, as
+	// wav.data can be dropped by the next load on any thread
+	synchronized short[] load(Wav wav) throws IOException, UnsupportedAudioFileException {
+		short[] data = wav.data;
+		if (data != null) {
+			resident.get(wav); // most recent
+			hits++;
+			return data;
+		}
+		misses++;
+		long start = System.nanoTime();
+		data = wav.pcm != null? wav.pcm.read() : decode(wav.file);
+		wav.data = data;
+		resident.put(wav, data);
+		used += data.length*2;
+		System.out.println((wav.pcm != null? "copied " : "decoded ")+wav.file.getName()+" in "+(System.nanoTime()-start)/1000000+"ms, cache "+(used>>20)+"MB");
+		Iterator<Map.Entry<Wav, short[]>> it = resident.entrySet().iterator();
+		while (used > budget && resident.size() > 1) {
+			Wav old = it.next().getKey();
+			if (old == wav) continue;
+			it.remove();
+			used -= old.data.length*2;
+			old.data = null; // plays already started keep their own reference
+			evictions++;
+		}
+		return data;
+	}
+
+	void preload(File manifest, Map<String, Sound> sounds) {
+		if (!manifest.exists()) return;
+		try (BufferedReader in = new BufferedReader(new FileReader(manifest))) {
+			String name;
+			while ((name = in.readLine()) != null) {
+				name = name.trim();
+				if (name.isEmpty() || name.startsWith("#")) continue;
+				Sound sound = sounds.get(name);
+				if (sound == null) {
+					System.out.println("ERROR preloading unknown sound '"+name+"'");
+					continue;
+				}
+				for (Wav wav : sound.files)
+					if (!wav.streamed)
+						load(wav);
+			}
+		} catch (IOException | UnsupportedAudioFileException e) {
+			System.out.println("ERROR preloading sounds");
+			e.printStackTrace();
+		}
+	}
+
+	// the whole file in Sounds.targetFormat
+	static short[] decode(File file) throws IOException, UnsupportedAudioFileException {
+		try (AudioInputStream in = open(file)) {
+			long frames = in.getFrameLength();
+			short[] data = new short[frames > 0? (int)frames : 1<<16];
+			byte[] scratch = new byte[1<<14];
+			int n = 0, got;
+			while ((got = read(in, data, n, data.length-n, scratch)) > 0) {
+				n += got;
+				if (n == data.length) {
+					if (frames > 0) break;
+					data = Arrays.copyOf(data, data.length*2); // length wasn't known
+				}
+			}
+			return n == data.length? data : Arrays.copyOf(data, n);
+		}
+	}
+
+	static AudioInputStream open(File file) throws IOException, UnsupportedAudioFileException {
+		return AudioSystem.getAudioInputStream(Sounds.targetFormat, AudioSystem.getAudioInputStream(file));
+	}
+
+	// reads up to max samples into data, returning how many, fewer only at the end
+	static int read(AudioInputStream in, short[] data, int off, int max, byte[] scratch) throws IOException {
+		int n = 0;
+		while (n < max) {
+			int got = in.read(scratch, 0, Math.min(scratch.length, (max-n)*2)); // whole frames
+			if (got <= 0) break;
+			for (int i=0; i<got; i+=2)
+				data[off+n++] = (short)(((scratch[i] & 0xFF) << 8) | (scratch[i+1] & 0xFF));
+		}
+		return n;
+	}
+
+	synchronized String stats() {
+		return "resident="+resident.size()+" used="+(used>>10)+"KB budget="+(budget>>10)+"KB hits="+hits+" misses="+misses+" evictions="+evictions;
+	}
+}
@@ -0,0 +1,95 @@
+package zpin;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * The region of a wav to repeat, e.g. so music can play an intro once and then loop the rest.
+ * Taken from a sidecar file next to the wav, "<name>.loop": "start end [count]" in samples of
+ * Sounds.targetFormat (end -1 for the end of the file, count -1 or missing to repeat until
+ * stopped).  Otherwise from the first loop of the wav's smpl chunk.
+ */
+public class WavLoop {
+	final int start, end; // samples, end exclusive, -1 for the end of the file
+	final int count; // times to repeat, -1 forever
+
+	WavLoop(int start, int end, int count) {
+		this.start = start;
+		this.end = end;
+		this.count = count;
+	}
+
+	// null if file has none, or it doesn't make sense
+	static WavLoop read(File file) {
+		try {
+			WavLoop loop = null;
+			File sidecar = new File(file.getParentFile(), file.getName().replaceFirst("\\.wav$", "")+".loop");
+			if (sidecar.exists())
+				loop = sidecar(sidecar);
+			else
+				loop = smpl(file);
+			if (loop != null && (loop.start < 0 || (loop.end != -1 && loop.end <= loop.start))) {
+				System.out.println("ERROR bad loop "+loop.start+"-"+loop.end+" in "+file.getName());
+				return null;
+			}
+			return loop;
+		} catch (IOException | RuntimeException e) {
+			System.out.println("ERROR reading loop of "+file.getName());
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	static WavLoop sidecar(File sidecar) throws IOException {
+		try (BufferedReader in = new BufferedReader(new FileReader(sidecar))) {
+			String[] parts = in.readLine().trim().split("\\s+");
+			return new WavLoop(Integer.parseInt(parts[0]),
+					parts.length > 1? Integer.parseInt(parts[1]) : -1,
+					parts.length > 2? Integer.parseInt(parts[2]) : -1);
+		}
+	}
+
+	// walks the RIFF chunks for smpl, scaling its loop from the file's rate
+	static WavLoop smpl(File file) throws IOException {
+		try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+			byte[] head = new byte[12];
+			in.readFully(head);
+			if (head[0] != 'R' || head[1] != 'I' || head[2] != 'F' || head[3] != 'F')
+				return null;
+			int rate = 0;
+			byte[] id = new byte[4];
+			while (in.getFilePointer()+8 <= in.length()) {
+				in.readFully(id);
+				long size = le32(in) & 0xFFFFFFFFL;
+				long next = in.getFilePointer() + size + (size & 1);
+				String name = new String(id, "US-ASCII");
+				if (name.equals("fmt ")) {
+					le32(in); // format, channels
+					rate = le32(in);
+				}
+				else if (name.equals("smpl") && size >= 36+24) {
+					in.skipBytes(28);
+					int loops = le32(in);
+					in.skipBytes(4);
+					if (loops < 1 || rate <= 0) return null;
+					in.skipBytes(8); // cue point id, type
+					long start = le32(in) & 0xFFFFFFFFL;
+					long end = (le32(in) & 0xFFFFFFFFL) + 1; // inclusive in the file
+					in.skipBytes(4); // fraction
+					int count = le32(in);
+					double scale = Sounds.targetFormat.getSampleRate() / rate;
+					return new WavLoop((int)Math.round(start*scale), (int)Math.round(end*scale), count == 0? -1 : count);
+				}
+				in.seek(next);
+			}
+			return null;
+		}
+	}
+
+	private static int le32(RandomAccessFile in) throws IOException {
+		return Integer.reverseBytes(in.readInt());
+	}
+}
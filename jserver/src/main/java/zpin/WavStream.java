@@ -0,0 +1,149 @@
+package zpin;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+import zpin.Sounds.Play;
+
+/**
+ * A play of a long wav, decoded from disk a chunk ahead of the mixer by the "sound-stream" thread
+ * so it never has to be resident.  If the mixer catches up it plays silence until the chunk's read.
+ * The reader loops on its own, counting down the same loops as the mixer, so a chunk ends at the
+ * wav's loop end whenever the mixer will jump back from there.
+ */
+public class WavStream {
+	static final int CHUNK = 22050; // samples
+
+	static class Chunk {
+		final short[] data = new short[CHUNK];
+		int start; // sample in the wav of data[0]
+		int length;
+		boolean last; // ends at the end of the wav
+	}
+
+	final Play play;
+	private AudioInputStream in = null; // reader thread
+	private int pos; // reader thread: the next sample to read
+	private int loops; // reader thread, the loops left as the mixer will have them at pos
+	private final byte[] scratch = new byte[1<<14];
+
+	// guarded by this
+	private Chunk next = null;
+	private boolean ended = false; // read to the end and not looping, nothing more to read
+	private boolean closed = false;
+	private boolean queued = false;
+
+	WavStream(Play play, int position) {
+		this.play = play;
+		this.pos = position;
+		this.loops = play.loops;
+		request();
+	}
+
+	// mixer thread: the next chunk, or null if it's not been read yet
+	synchronized Chunk take() {
+		Chunk c = next;
+		if (c != null) {
+			next = null;
+			request();
+		}
+		return c;
+	}
+
+	synchronized void close() {
+		closed = true;
+		request();
+	}
+
+	private synchronized void request() {
+		if (queued || (ended && !closed)) return;
+		queued = true;
+		fills.offer(this);
+	}
+
+	// reader thread
+	private void fill() {
+		synchronized (this) {
+			queued = false;
+			if (closed) {
+				closeIn();
+				return;
+			}
+			if (next != null || ended) return;
+		}
+		Chunk c = new Chunk();
+		c.start = pos;
+		int loopEnd = play.wav.loopEnd;
+		boolean toLoop = loops != 0 && loopEnd > pos && loopEnd-pos <= CHUNK;
+		int max = toLoop? loopEnd-pos : CHUNK;
+		try {
+			if (play.wav.pcm != null)
+				c.length = play.wav.pcm.read(pos, c.data, 0, max);
+			else {
+				if (in == null) {
+					in = WavCache.open(play.wav.file);
+					for (int skip = pos; skip > 0; ) {
+						int got = WavCache.read(in, c.data, 0, Math.min(skip, CHUNK), scratch);
+						if (got == 0) break;
+						skip -= got;
+					}
+				}
+				c.length = WavCache.read(in, c.data, 0, max, scratch);
+			}
+		} catch (IOException | UnsupportedAudioFileException e) {
+			System.out.println("ERROR streaming "+play.wav.file);
+			e.printStackTrace();
+			c.length = 0;
+		}
+		pos += c.length;
+		boolean looping = false;
+		if (c.length < max) {
+			c.last = true;
+			looping = loops != 0 && pos > 0;
+		}
+		else if (toLoop)
+			looping = true;
+		if (looping) {
+			if (loops > 0) loops--;
+			closeIn(); // reopened and skipped to the loop start next time
+			pos = play.wav.loopStart;
+		}
+		else if (c.last)
+			closeIn();
+		synchronized (this) {
+			next = c;
+			if (c.last && !looping)
+				ended = true;
+		}
+	}
+
+	private void closeIn() {
+		if (in == null) return;
+		try {
+			in.close();
+		} catch (IOException e) {
+		}
+		in = null;
+	}
+
+	private static final BlockingQueue<WavStream> fills = new LinkedBlockingQueue<>();
+	static {
+		Thread reader = new Thread("sound-stream") {
+			public void run() {
+				while (true) {
+					try {
+						fills.take().fill();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+		};
+		reader.setDaemon(true);
+		reader.start();
+	}
+}
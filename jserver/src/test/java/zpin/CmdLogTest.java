@@ -0,0 +1,78 @@
+package zpin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.PrintStream;
+import java.nio.file.Files;
+
+import org.junit.Test;
+
+public class CmdLogTest {
+	@Test
+	public void movesOldTextLogAside() throws Exception {
+		File dir = Files.createTempDirectory("cmdlog").toFile();
+		File file = new File(dir, "cmds.log");
+		try (FileWriter out = new FileWriter(file)) {
+			out.write("#1 sw\n");
+		}
+		CmdLog log = new CmdLog(file, 1<<20, 2);
+		log.start();
+		log.log(1, 2, 9, -1, "time", 200, 1000);
+		File old = new File(dir, "cmds.log.txt");
+		for (int i=0; i<200 && !(old.exists() && file.length() > CmdLog.MAGIC.length); i++)
+			Thread.sleep(10);
+		assertTrue(CmdLog.isLog(file));
+		assertEquals("#1 sw\n", new String(Files.readAllBytes(old.toPath())));
+	}
+
+	// everything in the log and its rotations, oldest first
+	static String[] dump(File file, int maxFiles) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		PrintStream print = new PrintStream(out, true, "UTF-8");
+		for (int n=maxFiles; n>=1; n--) {
+			File f = new File(file.getPath()+"."+n);
+			if (f.exists())
+				CmdLog.dump(f, print);
+		}
+		if (file.exists())
+			CmdLog.dump(file, print);
+		String text = out.toString("UTF-8");
+		return text.isEmpty()? new String[0] : text.split("\n");
+	}
+
+	@Test
+	public void writesRotatesAndDumps() throws Exception {
+		File dir = Files.createTempDirectory("cmdlog").toFile();
+		File file = new File(dir, "cmds.log");
+		CmdLog log = new CmdLog(file, 60, 3); // 3 records a file
+		log.start();
+		int fire = Commands.get("fire").opcode;
+		byte[] frameArgs = { 9, 9, Frames.INT, 0, 0, 0, 3 }; // after the frame's seq, opcode and board
+		for (int i=0; i<10; i++) {
+			if (i%2 == 0)
+				log.log(1, i, 9, -1, "time "+i, 200, 1500);
+			else
+				log.log(2, i, fire, 0, frameArgs, 2, 5, 400, 20000);
+		}
+		String[] lines = {};
+		for (int i=0; i<200 && lines.length < 10; i++) {
+			Thread.sleep(10);
+			lines = dump(file, 3);
+		}
+		assertEquals(10, lines.length);
+		assertTrue(new File(dir, "cmds.log.3").exists());
+		assertFalse(new File(dir, "cmds.log.4").exists());
+		for (int i=0; i<10; i++) {
+			if (i%2 == 0)
+				assertTrue(lines[i], lines[i].endsWith(" c1"+(i!=0? " #"+i : "")+" time "+i+" -> 200 1us"));
+			else
+				assertTrue(lines[i], lines[i].endsWith(" c2 #"+i+" 0: fire 3 -> 400 20us"));
+		}
+		assertEquals(0, log.dropped.get());
+	}
+}
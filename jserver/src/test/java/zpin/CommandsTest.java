@@ -0,0 +1,158 @@
+package zpin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import zpin.Commands.Command;
+import zpin.Commands.Slots;
+import zpin.Frames.FrameArgs;
+import zpin.JServerTest.Client;
+import zpin.JServerTest.Conn;
+
+public class CommandsTest {
+	final Slots slots = new Slots();
+	final Args.Text text = new Args.Text();
+
+	@BeforeClass
+	public static void init() {
+		JServerTest.init();
+	}
+
+	static FrameArgs frame(String name, Object... args) {
+		ByteBuffer req = FramesTest.request(1, Commands.get(name).opcode, -1, args);
+		return FramesTest.decode(req);
+	}
+
+	// parses line into slots as c would, expecting it to be refused with reply
+	void refused(Conn c, Args args, String reply) throws Exception {
+		try {
+			slots.parse(c.server, Commands.get(args.name()), args);
+			fail("parsed "+args);
+		} catch (ZError e) {
+		}
+		assertEquals(reply, c.line());
+	}
+
+	@Test
+	public void validates() throws Exception {
+		Conn c = new Conn();
+		refused(c, text.set("leds 1 #ff0000"), "400 usage: leds first hex state [hex state ...]");
+		refused(c, text.set("leds x #ff0000 0"), "400 Expected number for argument 1");
+		refused(c, text.set("stop-track"), "400 usage: stop-track track");
+		refused(c, text.set("disable"), "400 Expected at least 1 arguments");
+		refused(c, frame("stop-track", "x"), "400 Expected number for argument 1");
+		refused(c, text.set("fire 300"), "400 Expected argument 1 to be a byte");
+		refused(c, text.set("inits"), "400 usage: inits momentary|on-off|input|triggered <num> ...");
+		refused(c, text.set("inits bogus 3"), "400 unknown type 'bogus'");
+		refused(c, text.set("inits momentary"), "400 usage: init momentary <num> [fire time|50]");
+	}
+
+	@Test
+	public void repeatsAndRest() throws Exception {
+		Conn c = new Conn();
+		Command cmd = slots.parse(c.server, Commands.get("leds-at"), text.set("leds-at 3 #ff0000 5 4 #00ff00 6"));
+		assertSame(Commands.get("leds-at"), cmd);
+		assertEquals(7, slots.count);
+		assertEquals(3, slots.num(1));
+		assertEquals(0xFF0000, slots.rgb(2));
+		assertEquals(5, slots.num(3));
+		assertEquals(4, slots.num(4)); // the group again
+		assertEquals(0x00FF00, slots.rgb(5));
+		assertEquals(6, slots.num(6));
+
+		slots.parse(c.server, Commands.get("sound"), text.set("sound 50 1 true 0 false chip fall !2"));
+		assertEquals(7, slots.count); // the rest as one
+		assertTrue(slots.bool(3));
+		assertFalse(slots.bool(5));
+		assertEquals("chip fall !2", slots.str(6));
+
+		cmd = slots.parse(c.server, Commands.get("inits"), text.set("inits m 3 20"));
+		assertEquals("momentary", cmd.name);
+		assertEquals(3, slots.byt(2));
+		assertEquals(20, slots.num(3));
+	}
+
+	@Test
+	public void textAndFramesParseAlike() throws Exception {
+		Conn c = new Conn();
+		slots.parse(c.server, Commands.get("leds-at"), text.set("leds-at 3 #102030 5"));
+		int[] fromText = { slots.num(1), slots.rgb(2), slots.num(3), slots.count };
+		slots.parse(c.server, Commands.get("leds-at"), frame("leds-at", 3, 0x102030, 5));
+		assertEquals(fromText[0], slots.num(1));
+		assertEquals(fromText[1], slots.rgb(2));
+		assertEquals(fromText[2], slots.num(3));
+		assertEquals(fromText[3], slots.count);
+
+		slots.parse(c.server, Commands.get("sound"), frame("sound", 50, 1, true, 0, false, "chip fall"));
+		assertEquals("chip fall", slots.str(6));
+		assertTrue(slots.bool(3));
+	}
+
+	@Test
+	public void textAndBinaryReplyAlike() throws Exception {
+		Client t = Client.connect(), b = Client.connect();
+		b.send("binary");
+		assertEquals("200 ", b.line());
+
+		t.send("#3 leds-at 60 #123456 0");
+		assertEquals("#3 200 ", t.line());
+		b.write(bytes(FramesTest.request(3, Commands.get("leds-at").opcode, -1, 61, 0x123456, 0)));
+		ByteBuffer r = b.frame();
+		assertEquals(3, r.getShort());
+		assertEquals(200, r.getShort());
+		assertFalse(r.hasRemaining());
+		assertEquals(0x56, JServer.led.live.leds[60][0].b);
+		assertEquals(0x56, JServer.led.live.leds[61][0].b);
+
+		t.send("#4 leds-at 60");
+		assertEquals("#4 400 usage: leds-at led hex state [led hex state ...]", t.line());
+		b.write(bytes(FramesTest.request(4, Commands.get("leds-at").opcode, -1, 60)));
+		r = b.frame();
+		assertEquals(4, r.getShort());
+		assertEquals(400, r.getShort());
+		assertEquals(Frames.STRING, r.get());
+		byte[] msg = new byte[r.getShort()];
+		r.get(msg);
+		assertEquals("usage: leds-at led hex state [led hex state ...]", new String(msg, StandardCharsets.UTF_8));
+	}
+
+	static byte[] bytes(ByteBuffer buf) {
+		byte[] b = new byte[buf.remaining()];
+		buf.get(b);
+		return b;
+	}
+
+	// times each command's been asked for
+	static long count(String stats, String name) {
+		for (String s : stats.split(" "))
+			if (s.startsWith(name+"="))
+				return Long.parseLong(s.substring(name.length()+1));
+		return 0;
+	}
+
+	@Test
+	public void stats() throws Exception {
+		Conn c = new Conn();
+		long before = count(Commands.stats(), "time"), sub = count(Commands.stats(), "inits.momentary");
+		c.server.handleCommand("time");
+		c.server.handleCommand("time");
+		c.server.handleCommand("inits m 99"); // counted even though it fails
+		c.server.handleCommand("cmd-stats");
+		c.line();
+		c.line();
+		c.line();
+		String stats = c.line();
+		assertTrue(stats, stats.startsWith("200 "));
+		assertEquals(before+2, count(stats.substring(4), "time"));
+		assertEquals(sub+1, count(stats.substring(4), "inits.momentary"));
+	}
+}
@@ -0,0 +1,122 @@
+package zpin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import zpin.Frames.FrameArgs;
+
+public class FramesTest {
+	final ByteBuffer out = ByteBuffer.allocate(Frames.MAX_FRAME+2);
+
+	// a request as a client would send it, including the length
+	static ByteBuffer request(int seq, int opcode, int board, Object... args) {
+		ByteBuffer out = ByteBuffer.allocate(Frames.MAX_FRAME+2);
+		out.putShort((short)0);
+		out.putShort((short)seq);
+		out.put((byte)opcode);
+		out.put((byte)board);
+		for (Object arg : args)
+			Frames.putValue(out, arg);
+		out.putShort(0, (short)(out.position()-2));
+		out.flip();
+		return out;
+	}
+
+	// the body of the frame in buf, after its length
+	static FrameArgs decode(ByteBuffer buf) {
+		int len = buf.getShort() & 0xFFFF;
+		assertEquals(len, buf.remaining());
+		FrameArgs f = new FrameArgs();
+		f.decode(ByteBuffer.wrap(buf.array(), buf.position(), len).slice());
+		return f;
+	}
+
+	static void assertMalformed(byte[] body) {
+		try {
+			new FrameArgs().decode(ByteBuffer.wrap(body));
+			fail("decoded");
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+	@Test
+	public void roundTrip() {
+		// a response's status is where a request's opcode and board are
+		Frames.encode(out, -3, 0x0A05, new int[] {1, -2, 3});
+		out.flip();
+		FrameArgs f = decode(out);
+		assertEquals(-3, f.seq);
+		assertEquals(10, f.opcode);
+		assertEquals(5, f.board);
+		assertEquals(4, f.count);
+		assertEquals(-2, f.num(2));
+		assertEquals(3, f.num(3));
+
+		Object[] values = { "héllo", 2.5, true, 1L<<40, 7 };
+		for (Object v : values) {
+			out.clear();
+			Frames.encode(out, 9, 0x01FF, v);
+			out.flip();
+			f = decode(out);
+			assertEquals(-1, f.board);
+			assertEquals(2, f.count);
+			assertEquals(v instanceof Long? Double.toString(1L<<40) : v.toString(), f.str(1));
+		}
+	}
+
+	@Test
+	public void subFrames() {
+		ByteBuffer sub = request(0, 8, 2, 3, "x");
+		sub.getShort(); // a FRAME arg has its own length, then a request without its seq
+		sub.getShort();
+		ByteBuffer req = ByteBuffer.allocate(256);
+		req.putShort((short)0).putShort((short)4).put((byte)40).put((byte)-1);
+		req.put(Frames.FRAME).putShort((short)sub.remaining()).put(sub);
+		req.put(Frames.INT).putInt(6);
+		req.putShort(0, (short)(req.position()-2));
+		req.flip();
+		FrameArgs f = decode(req);
+		assertEquals(3, f.count);
+		assertEquals(6, f.num(2));
+		FrameArgs s = new FrameArgs();
+		s.decode(f, 1);
+		assertEquals(4, s.seq);
+		assertEquals(8, s.opcode);
+		assertEquals(2, s.board);
+		assertEquals(3, s.num(1));
+		assertEquals("x", s.str(2));
+	}
+
+	@Test
+	public void malformed() {
+		assertMalformed(new byte[] {});
+		assertMalformed(new byte[] {0, 1, 5}); // no board
+		assertMalformed(new byte[] {0, 1, 5, 0, 9}); // unknown type
+		assertMalformed(new byte[] {0, 1, 5, 0, Frames.INT, 0, 0}); // short int
+		assertMalformed(new byte[] {0, 1, 5, 0, Frames.DOUBLE, 0});
+		assertMalformed(new byte[] {0, 1, 5, 0, Frames.BOOL});
+		assertMalformed(new byte[] {0, 1, 5, 0, Frames.STRING, 0});
+		assertMalformed(new byte[] {0, 1, 5, 0, Frames.STRING, 0, 4, 'a', 'b'}); // runs past the end
+		assertMalformed(new byte[] {0, 1, 5, 0, Frames.FRAME, 1, 0, 0});
+
+		ByteBuffer many = ByteBuffer.allocate(4+Frames.MAX_ARGS*2);
+		many.putShort((short)1).put((byte)5).put((byte)0);
+		for (int i=0; i<Frames.MAX_ARGS; i++)
+			many.put(Frames.BOOL).put((byte)1);
+		assertMalformed(many.array());
+
+		// a string running past its frame isn't read out of the bytes after it
+		byte[] body = {0, 1, 5, 0, Frames.STRING, 0, 4, 'a', 'b', 'c', 'd'};
+		try {
+			new FrameArgs().decode(ByteBuffer.wrap(body, 0, 9));
+			fail("decoded");
+		} catch (IllegalArgumentException e) {
+			assertTrue(e.getMessage().contains("truncated"));
+		}
+	}
+}
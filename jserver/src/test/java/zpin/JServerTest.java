@@ -0,0 +1,320 @@
+package zpin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class JServerTest {
+	@BeforeClass
+	public static void init() {
+		SatIOTest.init();
+		SatIOTest.bus.boards[0] = new SimBus.SimSolenoid16();
+	}
+
+	static ConnectionEngine engine;
+
+	static ConnectionEngine engine() throws IOException {
+		if (engine == null) {
+			engine = new ConnectionEngine(0, 2, false);
+			engine.setDaemon(true);
+			engine.start();
+		}
+		return engine;
+	}
+
+	// the client end of a connection
+	static class Client {
+		SocketChannel client;
+		final ByteBuffer in = ByteBuffer.allocate(1<<16);
+
+		// connected through the engine, greeted
+		static Client connect() throws IOException {
+			Client c = new Client();
+			c.client = SocketChannel.open(engine().server.getLocalAddress());
+			assertEquals("owo?", c.line());
+			c.send(JServer.version);
+			assertEquals("200 sim", c.line());
+			return c;
+		}
+
+		void send(String line) throws IOException {
+			write((line+"\n").getBytes(StandardCharsets.UTF_8));
+		}
+
+		void write(byte[] b) throws IOException {
+			ByteBuffer buf = ByteBuffer.wrap(b);
+			while (buf.hasRemaining())
+				client.write(buf);
+		}
+
+		// the next reply frame, after its length
+		ByteBuffer frame() throws IOException {
+			while (true) {
+				if (in.position() >= 2) {
+					int len = in.getShort(0) & 0xFFFF;
+					if (in.position() >= 2+len) {
+						in.flip();
+						in.getShort();
+						ByteBuffer frame = ByteBuffer.allocate(len);
+						in.get(frame.array());
+						in.compact();
+						return frame;
+					}
+				}
+				if (client.read(in) < 0)
+					throw new IOException("closed");
+			}
+		}
+
+		// the next reply line, without its \r\n
+		String line() throws IOException {
+			while (true) {
+				for (int i=0; i<in.position(); i++)
+					if (in.get(i) == '\n') {
+						String line = new String(in.array(), 0, i-1, StandardCharsets.UTF_8);
+						in.flip();
+						in.position(i+1);
+						in.compact();
+						return line;
+					}
+				if (client.read(in) < 0)
+					throw new IOException("closed");
+			}
+		}
+	}
+
+	// a connection with no selector, its replies written straight out to client
+	static class Conn extends Client {
+		final JServer server;
+
+		Conn() throws IOException {
+			ServerSocketChannel listen = ServerSocketChannel.open();
+			listen.bind(new InetSocketAddress("127.0.0.1", 0));
+			client = SocketChannel.open(listen.getLocalAddress());
+			server = new JServer(null, listen.accept(), false);
+			listen.close();
+		}
+	}
+
+	@Test
+	public void longTextBatch() throws Exception {
+		Conn c = new Conn();
+		StringBuilder batch = new StringBuilder("#5 batch");
+		for (int i=0; i<100; i++)
+			batch.append(" time;");
+		c.server.handleCommand(batch.toString());
+		String line = c.line();
+		assertTrue(line, line.startsWith("#5 200 200 200"));
+		assertEquals(100, line.split(" ").length-2);
+	}
+
+	@Test
+	public void triggerDoesntWaitForCommand() throws Exception {
+		Conn c = new Conn();
+		c.server.handleCommand("init 0 s16");
+		assertEquals("200 init board 0", c.line());
+		c.server.handleCommand("0: inits momentary 3");
+		assertEquals("200 solenoid 3 = momentary", c.line());
+		Triggers.Trigger t = new Triggers.Trigger(c.server, "0: fire 3");
+
+		CountDownLatch busy = new CountDownLatch(1);
+		Thread slow = new Thread(() -> {
+			synchronized (c.server) { // as a command would, e.g. init waiting on the SPI worker
+				busy.countDown();
+				try {
+					Thread.sleep(2000);
+				} catch (InterruptedException e) {
+				}
+			}
+		});
+		slow.start();
+		busy.await();
+		long start = System.nanoTime();
+		t.owner.fire(t);
+		assertEquals(200, (int)t.owner.async.get(1, TimeUnit.SECONDS));
+		assertTrue((System.nanoTime()-start)/1000000 < 1000);
+		slow.interrupt();
+		slow.join();
+	}
+
+	@Test
+	public void soundErrorsAreAnswered() throws Exception {
+		Sounds.initTracks();
+		Conn c = new Conn();
+		c.server.handleCommand("#3 stop-track 9");
+		assertEquals("#3 500 no track 9", c.line());
+		try {
+			for (int i=0; i<Sounds.CMDS; i++)
+				Sounds.get().mute(1, false);
+			c.server.handleCommand("#4 stop-track 1");
+			assertEquals("#4 500 sound queue full", c.line());
+		} finally {
+			Sounds.get().drain();
+			Sounds.initTracks();
+		}
+	}
+
+	@Test
+	public void heldLedsArePerConnection() throws Exception {
+		Conn a = new Conn(), b = new Conn();
+		a.server.handleCommand("led-hold");
+		a.server.handleCommand("leds 20 #ff0000 0");
+		a.server.handleCommand("leds 20 #ff0000 0 #ff0000 0"); // half done
+		b.server.handleCommand("leds 30 #00ff00 0");
+		for (int i=0; i<4; i++)
+			(i<3? a : b).line();
+		LedManager.LedState[][] live = JServer.led.live.leds;
+		assertNull(live[20]);
+		assertEquals(0xFF, live[30][0].g);
+		a.server.handleCommand("led-commit");
+		a.line();
+		assertEquals(0xFF, JServer.led.live.leds[21][0].r);
+	}
+
+	// closes switch row,col, debounce off
+	static void close(int row, int col) throws InterruptedException {
+		SwitchMatrix.Switch sw = JServer.matrix.switches[row*JServer.matrix.Width+col];
+		sw.minOnTime = 0;
+		sw.update(row, col, true); // raw
+		sw.update(row, col, true); // event
+	}
+
+	@Test
+	public void subscribedEventsArePushed() throws Exception {
+		SwitchMatrix matrix = JServer.matrix;
+		Client c = Client.connect();
+		matrix.events.clear();
+		close(6, 4);
+		c.send("subscribe");
+		assertEquals("200 ", c.line());
+		String line = c.line(); // queued before subscribing
+		assertTrue(line, line.startsWith("!sw 6,4->true "));
+		close(6, 5);
+		line = c.line();
+		assertTrue(line, line.startsWith("!sw 6,5->true "));
+		assertTrue(matrix.events.isEmpty());
+		c.send("unsubscribe");
+		assertEquals("200 ", c.line());
+		close(6, 6);
+		assertEquals(1, matrix.events.size()); // back to waiting for sw
+		c.send("sw");
+		line = c.line();
+		assertTrue(line, line.startsWith("200 6,6->true "));
+	}
+
+	@Test
+	public void eventsRacingSubscribeArentLost() throws Exception {
+		SwitchMatrix matrix = JServer.matrix;
+		matrix.events.clear();
+		ArrayList<SwitchMatrix.Event> got = new ArrayList<>();
+		SwitchMatrix.EventListener l = e -> got.add(e);
+		Thread scan = new Thread(() -> {
+			for (int i=0; i<10000; i++) {
+				SwitchMatrix.Event e = new SwitchMatrix.Event();
+				e.row = i;
+				matrix.publish(e);
+			}
+		});
+		scan.start();
+		matrix.subscribe(l);
+		scan.join();
+		matrix.unsubscribe(l);
+		assertEquals(0, matrix.events.size());
+		assertEquals(10000, got.size());
+		for (int i=0; i<got.size(); i++)
+			assertEquals(i, got.get(i).row); // in order
+	}
+
+	@Test
+	public void partialAndSeveralLines() throws Exception {
+		Client c = Client.connect();
+		c.write("#1 ti".getBytes(StandardCharsets.UTF_8));
+		Thread.sleep(50); // read on its own
+		c.write("me\r\n#2 time\n#3 time\r\n#4 ti".getBytes(StandardCharsets.UTF_8));
+		for (int i=1; i<=3; i++) {
+			String line = c.line();
+			assertTrue(line, line.startsWith("#"+i+" 200 "));
+		}
+		c.send("me");
+		String line = c.line();
+		assertTrue(line, line.startsWith("#4 200 "));
+	}
+
+	@Test
+	public void oversizedCommandCloses() throws Exception {
+		Client c = Client.connect();
+		byte[] big = new byte[Frames.MAX_FRAME+2];
+		Arrays.fill(big, (byte)'a');
+		c.write(big);
+		try {
+			c.line();
+			fail("still open");
+		} catch (IOException e) {
+		}
+	}
+
+	@Test
+	public void resetClearsLeds() throws Exception {
+		Sounds.initTracks();
+		try {
+			Client c = Client.connect();
+			c.send("leds 40 #0000ff 0");
+			assertEquals("200 ", c.line());
+			assertEquals(0xFF, JServer.led.live.leds[40][0].b);
+			c.client.socket().setSoLinger(true, 0);
+			c.client.close(); // reset
+			long end = System.currentTimeMillis()+2000;
+			while (JServer.led.live.leds[40] != null && System.currentTimeMillis() < end)
+				Thread.sleep(10);
+			assertNull(JServer.led.live.leds[40]);
+		} finally {
+			Sounds.get().drain(); // the stopAll
+		}
+	}
+
+	@Test
+	public void badFrameIsAnswered() throws Exception {
+		Client c = Client.connect();
+		c.send("binary");
+		assertEquals("200 ", c.line());
+		int time = Commands.get("time").opcode;
+		ByteBuffer bad = ByteBuffer.allocate(64);
+		bad.putShort((short)7).putShort((short)5).put((byte)time).put((byte)-1).put((byte)9).putShort((short)0); // unknown type
+		bad.putShort((short)9).putShort((short)6).put((byte)time).put((byte)-1).put(Frames.STRING).putShort((short)40).put(new byte[2]);
+		ByteBuffer good = FramesTest.request(7, time, -1);
+		bad.put(good);
+		c.write(Arrays.copyOf(bad.array(), bad.position()));
+		ByteBuffer r = c.frame();
+		assertEquals(5, r.getShort());
+		assertEquals(400, r.getShort());
+		r = c.frame();
+		assertEquals(6, r.getShort());
+		assertEquals(400, r.getShort());
+		r = c.frame(); // still connected, and in step
+		assertEquals(7, r.getShort());
+		assertEquals(200, r.getShort());
+	}
+
+	@Test
+	public void writeToClosedClient() throws Exception {
+		Conn c = new Conn();
+		c.client.close();
+		for (int i=0; i<1000; i++)
+			c.server.resp("still here"); // fails at some point, but never throws into the caller
+	}
+}
@@ -0,0 +1,127 @@
+package zpin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+import zpin.LedManager.LedMode;
+import zpin.LedManager.LedState;
+
+public class LedManagerTest {
+	LedManager led = new LedManager();
+	LedManager.Stage s = new LedManager.Stage();
+
+	@Test
+	public void pushesOnlyChanges() {
+		led.frame(0, led.pixels);
+		assertEquals(150, led.diff(led.pixels)); // nothing known about the strip yet
+		assertEquals(0, led.diff(led.pixels));
+		assertEquals(1, led.skipped.get());
+
+		led.set(s, 3, new LedState[] { new LedState(255, 0, 0) });
+		led.set(s, 7, new LedState[] { new LedState(0, 0, 1) });
+		led.commit(s);
+		led.frame(33, led.pixels);
+		assertEquals(2, led.diff(led.pixels));
+		assertEquals(3, led.changed[0]);
+		assertEquals(7, led.changed[1]);
+		assertEquals(0xFF0000, led.shown[3]);
+		assertEquals(3, led.frames.get());
+		assertEquals(152, led.pushed.get());
+	}
+
+	@Test
+	public void fixedRate() {
+		long p = led.period;
+		assertEquals(p, led.next(0, p/2));
+		assertEquals(p, led.next(0, p*3/2)); // late, runs straight away
+		assertEquals(0, led.dropped.get());
+		assertEquals(5*p, led.next(0, p*5+p/2)); // stalled, skips to the next on the grid
+		assertEquals(4, led.dropped.get());
+	}
+
+	@Test
+	public void packed() {
+		int word = LedState.pack(LedMode.Pulsing, 2.5, 1, .25);
+		LedState s = LedState.unpack(0x102030, word);
+		assertEquals(0x10, s.r);
+		assertEquals(0x30, s.b);
+		assertEquals(LedMode.Pulsing, s.mode);
+		assertEquals(2.5, s.freq, 0);
+		assertEquals(1, s.phase, 0);
+		assertEquals(.25, s.dutyCycle, 1/255.);
+		assertEquals(LedMode.Solid, LedState.unpack(0, 0).mode);
+	}
+
+	@Test
+	public void stagedUntilCommit() {
+		LedState[][] before = led.live.leds;
+		led.set(s, 3, new LedState[] { new LedState(255, 0, 0) });
+		led.set(s, 4, new LedState[] { new LedState(255, 0, 0) });
+		led.frame(0, led.pixels);
+		assertEquals(0, led.pixels[3]);
+		assertSame(before, led.live.leds);
+		led.commit(s);
+		led.frame(0, led.pixels);
+		assertEquals(0xFF0000, led.pixels[3]);
+		assertEquals(0xFF0000, led.pixels[4]);
+		led.set(s, 3, null);
+		assertNotNull(led.live.leds[3]); // the published copy is untouched
+	}
+
+	@Test
+	public void chase() {
+		led.set(s, 2, new LedState[] { new LedState(0, 0, 255) });
+		led.play(s, "g", new int[] {1, 2, 3}, new LedManager.Seq(100, 10, new int[] {0, 50, 50}, new int[] {0x000000, 0xFF0000, 0x00FF00}), 1);
+		led.commit(s);
+		double start = led.live.anims[0].start;
+		led.frame(start+25, led.pixels);
+		assertEquals(0x800000, led.pixels[1], 0x010000); // half way up
+		assertEquals(0x4C0000, led.pixels[2], 0x010000); // 10ms behind
+		led.frame(start+70, led.pixels);
+		assertEquals(0x00FF00, led.pixels[2]); // jumped at 50
+		led.frame(start+115, led.pixels);
+		assertEquals(0, led.pixels[1]); // done, back to its state
+		assertEquals(0x0000FF, led.pixels[2]);
+		assertEquals(0x00FF00, led.pixels[3]);
+		led.set(s, 3, null);
+		led.commit(s);
+		assertEquals(1, led.live.anims.length); // still going on 3
+	}
+
+	@Test
+	public void loopsUntilStopped() {
+		led.play(s, "g", new int[] {5}, new LedManager.Seq(100, 0, new int[] {0, 100}, new int[] {0x000000, 0x0000FF}), 0);
+		led.commit(s);
+		double start = led.live.anims[0].start;
+		led.frame(start+1050, led.pixels);
+		assertEquals(0x7F, led.pixels[5], 1);
+		led.stop(s, "g");
+		led.commit(s);
+		led.frame(start+1100, led.pixels);
+		assertEquals(0, led.pixels[5]);
+	}
+	
+	@Test
+	public void stagedPerConnection() {
+		LedManager.Stage held = new LedManager.Stage();
+		led.set(held, 3, new LedState[] { new LedState(255, 0, 0) });
+		led.play(held, "g", new int[] {5}, new LedManager.Seq(100, 0, new int[] {0}, new int[] {0x0000FF}), 0);
+		led.set(s, 4, new LedState[] { new LedState(0, 255, 0) });
+		led.commit(s); // another connection committing doesn't publish what's held
+		led.frame(0, led.pixels);
+		assertEquals(0, led.pixels[3]);
+		assertEquals(0x00FF00, led.pixels[4]);
+		assertEquals(0, led.live.anims.length);
+		led.stop(s, null);
+		led.commit(s); // nor stop what's yet to play
+		led.commit(held);
+		led.frame(0, led.pixels);
+		assertEquals(0xFF0000, led.pixels[3]);
+		assertEquals(0x00FF00, led.pixels[4]);
+		assertEquals(1, led.live.anims.length);
+		assertEquals(0x0000FF, led.pixels[5]);
+	}
+}
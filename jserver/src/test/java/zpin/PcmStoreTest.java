@@ -0,0 +1,47 @@
+package zpin;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import org.junit.Test;
+
+public class PcmStoreTest {
+	File dir;
+
+	File wav(String name, short[] data) throws Exception {
+		File file = new File(dir, name);
+		Files.move(WavCacheTest.write(data).toPath(), file.toPath());
+		return file;
+	}
+
+	@Test
+	public void rebuildsOnlyWhenChanged() throws Exception {
+		dir = Files.createTempDirectory("pcmstore").toFile();
+		short[] a = WavCacheTest.ramp(30000), b = WavCacheTest.ramp(1000);
+		File[] files = { wav("a.wav", a), wav("b.wav", b) };
+
+		PcmStore store = PcmStore.open(dir, files);
+		assertArrayEquals(a, store.get("a.wav").read());
+		assertArrayEquals(b, store.get("b.wav").read());
+		long built = new File(dir, "pcm.store").lastModified();
+
+		Thread.sleep(10);
+		store = PcmStore.open(dir, files);
+		assertEquals(built, new File(dir, "pcm.store").lastModified());
+		short[] some = new short[10];
+		assertEquals(10, store.get("a.wav").read(500, some, 0, 10));
+		assertEquals(a[505], some[5]);
+
+		files[0].delete();
+		short[] a2 = WavCacheTest.ramp(20000);
+		wav("a.wav", a2).setLastModified(files[0].lastModified()+2000);
+		PcmStore rebuilt = PcmStore.open(dir, files);
+		assertNotSame(store, rebuilt);
+		assertArrayEquals(a2, rebuilt.get("a.wav").read());
+		assertArrayEquals(b, rebuilt.get("b.wav").read());
+	}
+}
@@ -0,0 +1,182 @@
+package zpin;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import zpin.SimBus.SimSolenoid16;
+
+public class SatIOTest {
+	static SimBus bus = new SimBus();
+	static SatIO io;
+
+	// shared with the other tests that need boards, there's only one SatIO
+	@BeforeClass
+	public static void init() {
+		if (io == null)
+			io = SatIO.init(bus);
+	}
+
+	@Before
+	public void lock() throws InterruptedException {
+		assertTrue(SatIO.waitLock(1000)); // the SPI worker lets go just after finishing the last test's work
+		for (int i=0; i<bus.boards.length; i++)
+			bus.boards[i] = null;
+		bus.boards[0] = new SimSolenoid16();
+		bus.transfers = 0;
+		bus.maxTransfer = 2048;
+		SatIO.window = 32;
+	}
+
+	@After
+	public void unlock() {
+		SatIO.unlock();
+	}
+
+	@Test
+	public void commandIsOneTransfer() {
+		io.select(0);
+		byte[] id = io.sendCommandExpect(2, 0b11111110);
+		assertArrayEquals(new byte[] { 5 | (1 << 4), 3 }, id);
+		assertEquals(1, bus.transfers);
+	}
+
+	@Test
+	public void pipelineIsOneTransfer() {
+		io.select(0);
+		SatIO.Pipeline p = io.pipeline();
+		for (int i=0; i<10; i++)
+			p.add(0, 3 << 4 | i);
+		p.add(2, 0b11111111);
+		p.add(2, 0b11111111);
+		byte[][] replies = p.send();
+		assertEquals(1, bus.transfers);
+		assertEquals(12, bus.boards[0].received.size());
+		assertEquals(0, replies[0].length);
+		int boot = ((SimSolenoid16)bus.boards[0]).bootId;
+		assertArrayEquals(new byte[] { (byte)(boot >> 8), (byte)boot }, replies[10]);
+		assertArrayEquals(replies[10], replies[11]);
+	}
+
+	@Test
+	public void slowBoardGetsEverythingOnce() {
+		int misses = SatIO.windowMisses;
+		bus.boards[0].readyDelay = 100;
+		io.select(0);
+		SatIO.Pipeline p = io.pipeline();
+		for (int i=0; i<5; i++)
+			p.add(0, 3 << 4 | i);
+		p.send();
+		assertEquals(5, bus.boards[0].received.size());
+		boolean[] seen = new boolean[5];
+		for (byte[] cmd : bus.boards[0].received)
+			seen[cmd[0] & 0xF] = true;
+		for (int i=0; i<5; i++)
+			assertTrue(seen[i]);
+		assertTrue(SatIO.window > 100);
+		assertTrue(SatIO.windowMisses > misses);
+		assertEquals("window="+SatIO.window+" windowMisses="+SatIO.windowMisses, SatIO.stats());
+	}
+
+	@Test
+	public void splitsAtMaxTransfer() {
+		bus.maxTransfer = 100;
+		io.select(0);
+		SatIO.Pipeline p = io.pipeline();
+		for (int i=0; i<10; i++)
+			p.add(0, 3 << 4 | i);
+		p.send();
+		assertEquals(10, bus.boards[0].received.size());
+		assertTrue(bus.transfers > 1 && bus.transfers < 10);
+	}
+
+	@Test(expected = SatIO.Error.class)
+	public void checksumFail() {
+		bus.boards[0].badChecksum = true;
+		io.select(0);
+		io.sendCommand0(0b0011);
+	}
+
+	@Test(expected = SatIO.Error.class)
+	public void wrongLength() {
+		io.select(0);
+		io.sendCommandExpect(0, 0b11111110);
+	}
+
+	@Test
+	public void wrongLengthFromBoard() {
+		io.select(0);
+		try {
+			io.sendCommand0(1 << 4 | 2); // fire for without the time
+			fail();
+		} catch (SatIO.Error e) {
+			assertTrue(e.getMessage(), e.getMessage().endsWith("wanted 5"));
+		}
+	}
+
+	@Test
+	public void solenoid16Init() {
+		Solenoid16 board = new Solenoid16(0);
+		assertEquals(Board.Type.Solenoid16, board.type);
+		assertEquals(17, bus.boards[0].received.size());
+		assertEquals(2, bus.transfers);
+	}
+
+	@Test
+	public void queueRunsMostUrgentFirst() throws Exception {
+		SatIO.unlock(); // the worker needs it
+		CountDownLatch started = new CountDownLatch(1), release = new CountDownLatch(1);
+		io.submit(SatIO.HEARTBEAT, () -> {
+			started.countDown();
+			release.await();
+			return null;
+		});
+		started.await();
+		List<Integer> ran = new ArrayList<>();
+		int[] order = { SatIO.HEARTBEAT, SatIO.CONFIG, SatIO.COMMAND, SatIO.TRIGGER, SatIO.COMMAND };
+		List<CompletableFuture<Integer>> done = new ArrayList<>();
+		for (int priority : order)
+			done.add(io.submit(priority, () -> { ran.add(priority); return priority; }));
+		CompletableFuture<byte[]> fired = io.submit(0, SatIO.TRIGGER, 0, (byte)(3 << 4 | 0b0011));
+		release.countDown();
+		for (CompletableFuture<Integer> f : done)
+			f.get();
+		assertEquals(0, fired.get().length);
+		assertEquals(Arrays.asList(SatIO.TRIGGER, SatIO.COMMAND, SatIO.COMMAND, SatIO.CONFIG, SatIO.HEARTBEAT), ran);
+		assertEquals(1, bus.boards[0].received.size());
+	}
+
+	@Test
+	public void solenoid16Commands() throws Exception {
+		Solenoid16 board = new Solenoid16(0);
+		SatIO.unlock();
+		board.initMomentary((byte)2, 30).get();
+		board.initOnOff((byte)5).get();
+		board.initTriggered((byte)6, (byte)2, 10, 40).get();
+		board.fireSolenoid((byte)2, SatIO.COMMAND).get();
+		board.fireSolenoidFor((byte)2, 60, SatIO.COMMAND).get();
+		board.fireSolenoid((byte)3, SatIO.COMMAND).get(); // disabled
+		board.turnOnSolenoid((byte)5, SatIO.TRIGGER).get();
+		SimSolenoid16 sim = (SimSolenoid16)bus.boards[0];
+		assertEquals(2, sim.solenoids[2].fires);
+		assertEquals(60, sim.solenoids[2].lastFireTime);
+		assertEquals(0, sim.solenoids[3].fires);
+		assertTrue(sim.solenoids[5].on);
+		assertEquals(Solenoid16.SolenoidMode.Triggered, sim.solenoids[6].mode);
+		assertEquals(2, sim.solenoids[6].triggeredBy);
+		assertEquals(40, sim.solenoids[6].onTime);
+		assertEquals(board.heartbeat().get(), board.heartbeat().get());
+	}
+}
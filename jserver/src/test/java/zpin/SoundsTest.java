@@ -0,0 +1,355 @@
+package zpin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import zpin.Sounds.Play;
+import zpin.Sounds.Sound;
+import zpin.Sounds.Wav;
+
+public class SoundsTest {
+	Sounds sounds = Sounds.get();
+
+	@Before
+	public void tracks() {
+		sounds.drain(); // anything a test left queued
+		Sounds.initTracks();
+	}
+
+	static Wav wav(int length, int value) {
+		short[] data = new short[length];
+		Arrays.fill(data, (short)value);
+		return new Wav("test", data);
+	}
+
+	short[] mix(int samples) {
+		ByteBuffer buf = ByteBuffer.allocate(samples*2);
+		sounds.mix(buf, samples);
+		short[] out = new short[samples];
+		buf.flip();
+		buf.asShortBuffer().get(out);
+		return out;
+	}
+
+	@Test
+	public void gains() {
+		new Play(wav(100, 1000), Sounds.tracks[1].channels[0], 1);
+		new Play(wav(100, 1000), Sounds.tracks[0].channels[0], .5f);
+		assertEquals(1000 + 75, mix(10)[9], 1); // music is at .15
+	}
+
+	@Test
+	public void ducking() {
+		new Play(wav(100000, 1000), Sounds.tracks[1].channels[0], 1);
+		mix(441);
+		new Play(wav(441*3, 0), Sounds.tracks[2].channels[0], 1); // 30ms
+		short[] out = mix(441); // 10ms at a time
+		assertEquals(1000, out[0], 1);
+		assertEquals(1000 - 200/3, out[440], 2); // a third of the way down
+		mix(441);
+		assertEquals(800, mix(441)[440], 1);
+		for (int i=0; i<14; i++) mix(441); // releasing
+		assertEquals(1000 - 200/2, mix(441)[440], 2);
+		for (int i=0; i<15; i++) mix(441);
+		assertEquals(1000, mix(441)[0], 1);
+	}
+
+	@Test
+	public void rampsToNewGain() {
+		Play play = new Play(wav(1000, 1000), Sounds.tracks[1].channels[0], 1);
+		mix(100);
+		play.volume = .5f;
+		short[] out = mix(100);
+		assertEquals(1000, out[0], 1);
+		assertEquals(750, out[50], 2);
+		assertEquals(500, out[99], 6);
+		assertEquals(500, mix(10)[0]);
+	}
+
+	@Test
+	public void fades() throws Exception {
+		sound("a", wav(100000, 1000));
+		Play play = sounds.prepare("a", 1, 0);
+		play.fadeIn(10);
+		sounds.queue(play, 1, false);
+		short[] out = mix(441);
+		assertEquals(0, out[0], 1);
+		assertEquals(500, out[220], 3);
+		assertEquals(1000, mix(10)[0], 1);
+
+		sounds.fadeOut(1, 20);
+		out = mix(441);
+		assertEquals(750, out[220], 3);
+		assertTrue(play.playing);
+		out = mix(441);
+		assertEquals(0, out[440], 3);
+		assertFalse(play.playing);
+		assertEquals(0, mix(10)[0]);
+	}
+
+	@Test
+	public void stopIsDeclicked() throws Exception {
+		sound("a", wav(100000, 1000));
+		Play play = sounds.playSound("a", 1, 1, 0, false);
+		mix(441);
+		sounds.stopTrack(1);
+		short[] out = mix(441);
+		assertEquals(1000, out[0], 1);
+		assertEquals(0, out[440], 3);
+		assertFalse(play.playing);
+	}
+
+	@Test
+	public void muted() {
+		new Play(wav(100, 1000), Sounds.tracks[1].channels[0], 1);
+		Sounds.tracks[1].muted = 1;
+		assertEquals(0, mix(10)[0]);
+	}
+
+	@Test
+	public void saturates() {
+		new Play(wav(100, 30000), Sounds.tracks[1].channels[0], 1);
+		new Play(wav(100, 30000), Sounds.tracks[1].channels[1], 1);
+		assertEquals(Short.MAX_VALUE, mix(10)[0]);
+		for (int c=2; c<7; c++)
+			new Play(wav(100, -30000), Sounds.tracks[1].channels[c], 1);
+		assertEquals(Short.MIN_VALUE, mix(10)[0]);
+	}
+
+	@Test
+	public void endsMidBlock() {
+		Play play = new Play(wav(10, 1000), Sounds.tracks[1].channels[0], 1);
+		short[] out = mix(16);
+		assertEquals(1000, out[9]);
+		assertEquals(0, out[10]);
+		assertTrue(play.finished);
+	}
+
+	@Test
+	public void loops() {
+		Play play = new Play(wav(10, 1000), Sounds.tracks[1].channels[0], 1);
+		play.loops = 2;
+		short[] out = mix(40);
+		assertEquals(1000, out[29]);
+		assertEquals(0, out[30]);
+		assertTrue(play.finished);
+	}
+
+	void sound(String name, Wav wav) {
+		Sound sound = new Sound(name);
+		sound.files.add(wav);
+		sounds.sounds.put(name, sound);
+	}
+
+	@Test
+	public void introThenLoopFile() throws Exception {
+		sound("x with start", wav(100, 1000));
+		Wav loopWav = wav(50, 2000);
+		sound("x loop", loopWav);
+		Play intro = sounds.playSound("x with start", 1, 1, 0, false);
+		short[] out = mix(300);
+		assertEquals(1000, out[99]);
+		assertEquals(2000, out[100]);
+		assertEquals(2000, out[299]); // round again and again
+		assertTrue(intro.finished);
+		Play loop = intro.channel.curPlay;
+		assertEquals(loopWav, loop.wav);
+
+		Play again = sounds.playSound("x with start", 1, 1, 0, true);
+		assertEquals(2000, mix(10)[0]);
+		assertTrue(again.finished); // swapped for the loop while it's going, picking up where it was
+		assertTrue(loop.wav.curPlay.playing);
+
+		sounds.stopTrack(1);
+		mix(441);
+		assertNull(loop.wav.curPlay);
+		Play after = sounds.playSound("x with start", 1, 1, 0, true);
+		assertEquals(1000, mix(10)[0]); // the loop was stopped, so from the top
+		assertTrue(after.playing);
+	}
+
+	@Test
+	public void queuedUntilNextBlock() throws Exception {
+		sound("q", wav(100, 1000));
+		Play play = sounds.playSound("q", 1, 1, 0, false);
+		assertFalse(play.playing);
+		assertNull(Sounds.tracks[1].channels[0].curPlay);
+		assertEquals(1000, mix(10)[0]);
+		assertTrue(play.playing);
+	}
+
+	@Test
+	public void appliedInOrder() throws Exception {
+		sound("q", wav(100, 1000));
+		Play first = sounds.playSound("q", 1, 1, 0, false);
+		sounds.stopTrack(1);
+		Play second = sounds.playSound("q", 1, .5f, 0, false);
+		assertEquals(500, mix(10)[0]);
+		assertFalse(first.playing);
+		assertTrue(second.playing);
+	}
+
+	@Test
+	public void droppedForLonger() throws Exception {
+		sound("long", wav(100, 1000));
+		sound("short", wav(50, 1000));
+		Play first = sounds.playSound("long", 1, 1, 0, false);
+		Play second = sounds.playSound("short", 1, 1, 0, false); // within 50ms
+		assertEquals(1000, mix(10)[0]);
+		assertTrue(first.playing);
+		assertTrue(second.finished);
+		assertNull(second.channel);
+	}
+
+	@Test
+	public void full() throws Exception {
+		try {
+			for (int i=0; i<=Sounds.CMDS; i++)
+				sounds.mute(1, true);
+			fail();
+		} catch (ZError e) {
+		}
+		mix(10);
+		assertEquals(Sounds.CMDS, Sounds.tracks[1].muted);
+	}
+
+	@Test
+	public void scheduledToTheSample() throws Exception {
+		sound("q", wav(100, 1000));
+		sounds.blockAt = 1000; // ms
+		Play play = sounds.playSound("q", 1, 1, 0, false, 1000 + 1000*15/44100., 0);
+		short[] out = mix(10);
+		assertEquals(0, out[9]);
+		assertFalse(play.playing);
+		sounds.blockAt += 1000*10/44100.;
+		out = mix(10);
+		assertEquals(0, out[4]);
+		assertEquals(1000, out[5]);
+		assertTrue(play.playing);
+	}
+
+	@Test
+	public void scheduledLate() throws Exception {
+		sound("q", wav(100, 1000));
+		sounds.blockAt = 1000;
+		long late = sounds.late.get();
+		sounds.playSound("q", 1, 1, 0, false, 900, 0);
+		assertEquals(1000, mix(10)[0]);
+		assertEquals(late+1, sounds.late.get());
+	}
+
+	@Test
+	public void clockFollowsTheLine() {
+		sounds.blockAt = 0;
+		mix(441); // 10ms
+		sounds.clock(441, 0); // just starting, takes the measurement
+		double at = sounds.blockAt;
+		assertEquals(SwitchMatrix.ms() + 10 + sounds.outputLatency, at, 1);
+		mix(441);
+		sounds.clock(882, 0); // another 10ms written, none played yet
+		assertEquals(at + 10, sounds.blockAt, 1);
+	}
+
+	@Test
+	public void countsDropsAndVoices() throws Exception {
+		sound("long", wav(100, 1000));
+		sound("short", wav(50, 1000));
+		long skipped = sounds.skipped.get(), blocks = sounds.voices.count();
+		sounds.playSound("long", 1, 1, 0, false);
+		sounds.playSound("short", 1, 1, 0, false);
+		mix(10);
+		assertEquals(skipped+1, sounds.skipped.get());
+		assertEquals(blocks+1, sounds.voices.count());
+		assertTrue(sounds.stats().contains("skipped="+sounds.skipped.get()));
+	}
+
+	@Test
+	public void freeChannels() {
+		Sounds.Track voice = Sounds.tracks[2];
+		assertEquals(voice.channels[0], voice.getFreeChannel());
+		Play play = new Play(wav(10, 1000), voice.channels[0], 1);
+		assertNull(voice.getFreeChannel());
+		mix(16);
+		assertTrue(play.finished);
+		assertEquals(voice.channels[0], voice.getFreeChannel());
+	}
+
+	@Test
+	public void stealsOnlyForHigherPriority() throws Exception {
+		sound("a", wav(100000, 1000));
+		sound("b", wav(100000, 2000));
+		Play first = sounds.playSound("a", 2, 1, 0, false);
+		mix(3000); // past just started
+		Play same = sounds.playSound("b", 2, 1, 0, false);
+		mix(10);
+		assertTrue(same.finished);
+		assertTrue(first.playing);
+		Play callout = sounds.playSound("b", 2, 1, 0, false, -1, 5);
+		mix(10);
+		assertTrue(callout.playing);
+		assertFalse(first.playing);
+		assertTrue(sounds.stolen.get() > 0);
+	}
+
+	@Test
+	public void stealsOldest() throws Exception {
+		sound("a", wav(100000, 1000));
+		Sounds.Track music = Sounds.tracks[0];
+		music.steal = Sounds.Steal.OLDEST;
+		Play oldest = sounds.playSound("a", 0, 1, 0, false);
+		mix(3000);
+		Play newer = sounds.playSound("a", 0, .5f, 0, false); // same wav stops the last play of it
+		mix(3000);
+		assertFalse(oldest.playing);
+		assertTrue(newer.playing);
+		sound("b", wav(100000, 1000));
+		sound("c", wav(100000, 1000));
+		Play b = sounds.playSound("b", 0, 1, 0, false);
+		mix(3000);
+		Play c = sounds.playSound("c", 0, 1, 0, false);
+		mix(10);
+		assertFalse(newer.playing);
+		assertTrue(b.playing);
+		assertTrue(c.playing);
+	}
+
+	@Test
+	public void stealsQuietest() throws Exception {
+		sound("a", wav(100000, 1000));
+		sound("b", wav(100000, 1000));
+		sound("c", wav(100000, 1000));
+		Sounds.tracks[0].steal = Sounds.Steal.QUIETEST;
+		Play loud = sounds.playSound("a", 0, 1, 0, false);
+		mix(3000);
+		Play quiet = sounds.playSound("b", 0, .2f, 0, false);
+		mix(3000);
+		sounds.playSound("c", 0, 1, 0, false);
+		mix(10);
+		assertTrue(loud.playing);
+		assertFalse(quiet.playing);
+	}
+
+	@Test
+	public void neverSteals() throws Exception {
+		sound("a", wav(100000, 1000));
+		sound("b", wav(100000, 1000));
+		sounds.steal(2, Sounds.Steal.NEVER);
+		long dropped = sounds.dropped.get();
+		Play first = sounds.playSound("a", 2, 1, 0, false);
+		mix(3000);
+		Play second = sounds.playSound("b", 2, 1, 0, false, -1, 100);
+		mix(10);
+		assertTrue(first.playing);
+		assertTrue(second.finished);
+		assertEquals(dropped+1, sounds.dropped.get());
+	}
+}
@@ -0,0 +1,65 @@
+package zpin;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+
+import org.junit.Test;
+
+import zpin.Sounds.Wav;
+
+public class WavCacheTest {
+	static File write(short[] data) throws Exception {
+		ByteBuffer bytes = ByteBuffer.allocate(data.length*2);
+		bytes.asShortBuffer().put(data);
+		File file = File.createTempFile("wavcache", ".wav");
+		file.deleteOnExit();
+		AudioSystem.write(new AudioInputStream(new ByteArrayInputStream(bytes.array()), Sounds.targetFormat, data.length),
+				AudioFileFormat.Type.WAVE, file);
+		return file;
+	}
+
+	static short[] ramp(int length) {
+		short[] data = new short[length];
+		for (int i=0; i<length; i++)
+			data[i] = (short)(i*7 - 20000);
+		return data;
+	}
+
+	@Test
+	public void decode() throws Exception {
+		short[] data = ramp(50000);
+		assertArrayEquals(data, WavCache.decode(write(data)));
+	}
+
+	@Test
+	public void loadsLazilyAndEvicts() throws Exception {
+		WavCache cache = new WavCache();
+		cache.budget = 150000; // bytes, room for one
+		Wav a = new Wav(write(ramp(50000)));
+		Wav b = new Wav(write(ramp(50000)));
+		assertFalse(a.resident());
+		assertEquals(50000/44100., a.length, .001);
+
+		cache.load(a);
+		assertTrue(a.resident());
+		short[] held = cache.load(a);
+		cache.load(b);
+		assertNull(a.data);
+		assertEquals(50000, held.length); // what a play of a would have kept
+		assertTrue(b.resident());
+		assertEquals(1, cache.hits);
+		assertEquals(2, cache.misses);
+		assertEquals(1, cache.evictions);
+	}
+}
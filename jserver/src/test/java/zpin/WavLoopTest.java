@@ -0,0 +1,101 @@
+package zpin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import zpin.Sounds.Play;
+import zpin.Sounds.Wav;
+
+public class WavLoopTest {
+	@Before
+	public void tracks() {
+		Sounds.get().drain();
+		Sounds.initTracks();
+	}
+
+	static File sidecar(File wav, String text) throws Exception {
+		File loop = new File(wav.getPath().replaceFirst("\\.wav$", ".loop"));
+		loop.deleteOnExit();
+		try (FileWriter out = new FileWriter(loop)) {
+			out.write(text);
+		}
+		return loop;
+	}
+
+	// adds a smpl chunk with one loop, end inclusive as the format has it
+	static void smpl(File wav, int start, int end, int count) throws Exception {
+		ByteBuffer chunk = ByteBuffer.allocate(8+36+24).order(ByteOrder.LITTLE_ENDIAN);
+		chunk.put("smpl".getBytes("US-ASCII")).putInt(36+24);
+		chunk.putInt(0).putInt(0).putInt(22675).putInt(60).putInt(0).putInt(0).putInt(0);
+		chunk.putInt(1).putInt(0); // loops, sampler data
+		chunk.putInt(0).putInt(0).putInt(start).putInt(end).putInt(0).putInt(count);
+		try (RandomAccessFile f = new RandomAccessFile(wav, "rw")) {
+			f.seek(f.length());
+			f.write(chunk.array());
+			f.seek(4);
+			f.writeInt(Integer.reverseBytes((int)f.length()-8));
+		}
+	}
+
+	@Test
+	public void fromSidecar() throws Exception {
+		File file = WavCacheTest.write(new short[100]);
+		sidecar(file, "10 50 3\n");
+		WavLoop loop = WavLoop.read(file);
+		assertEquals(10, loop.start);
+		assertEquals(50, loop.end);
+		assertEquals(3, loop.count);
+	}
+
+	@Test
+	public void fromSmpl() throws Exception {
+		File file = WavCacheTest.write(new short[100]);
+		smpl(file, 20, 79, 0);
+		WavLoop loop = WavLoop.read(file);
+		assertEquals(20, loop.start);
+		assertEquals(80, loop.end);
+		assertEquals(-1, loop.count);
+		assertEquals(100, WavCache.decode(file).length); // still reads as a wav
+	}
+
+	@Test
+	public void badLoopIgnored() throws Exception {
+		File file = WavCacheTest.write(new short[100]);
+		sidecar(file, "50 10\n");
+		assertNull(WavLoop.read(file));
+		assertNull(new Wav(file).loop);
+	}
+
+	@Test
+	public void introThenLoop() throws Exception {
+		short[] data = WavCacheTest.ramp(100);
+		File file = WavCacheTest.write(data);
+		sidecar(file, "40 60 2\n");
+		Wav wav = new Wav(file);
+		wav.load();
+		Play play = new Play(wav, 1, 0);
+		play.start(Sounds.tracks[1].channels[0], 0);
+		ByteBuffer buf = ByteBuffer.allocate(2*200);
+		Sounds.get().mix(buf, 200);
+		buf.flip();
+		short[] out = new short[200];
+		buf.asShortBuffer().get(out);
+		int i = 0;
+		for (int s=0; s<60; s++) assertEquals(data[s], out[i++]); // intro and the loop
+		for (int l=0; l<2; l++)
+			for (int s=40; s<60; s++) assertEquals(data[s], out[i++]); // twice more
+		for (int s=60; s<100; s++) assertEquals(data[s], out[i++]); // then the rest
+		assertEquals(0, out[i]);
+		assertTrue(play.finished);
+	}
+}